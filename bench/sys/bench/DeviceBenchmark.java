@@ -0,0 +1,67 @@
+package sys.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import sys.malta.Malta;
+import sys.malta.PIIX4;
+import sys.malta.UartUtil;
+import sys.mips.*;
+import sys.util.Logger;
+
+/**
+ * io port reads and writes from the cpu to a device, through the memory and
+ * the MultiDevice page tables of the malta and the piix4
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceBenchmark {
+
+	/** kseg1 address of the piix4 io ports */
+	private static final int IO = MemoryUtil.KSEG1 + Malta.M_PIIX4;
+
+	@Param({ "pic", "uart" })
+	public String device;
+
+	private Memory memory;
+	private int loadAddr, storeAddr;
+	private byte storeValue;
+
+	@Setup
+	public void setup () {
+		// don't measure the logging
+		Logger.rootLevel = Integer.MAX_VALUE;
+		memory = new Cpu(32 << 20, true).getMemory();
+		switch (device) {
+			case "pic":
+				// read and write the interrupt mask of the master
+				loadAddr = storeAddr = IO + PIIX4.M_PIC_MASTER + 1;
+				storeValue = (byte) 0xff;
+				break;
+			case "uart":
+				// read the line status and write the interrupt enable of com2 (not the console)
+				loadAddr = IO + PIIX4.M_COM2 + UartUtil.M_LSR;
+				storeAddr = IO + PIIX4.M_COM2 + UartUtil.M_IER;
+				storeValue = 0;
+				break;
+			default:
+				throw new RuntimeException("invalid device " + device);
+		}
+	}
+
+	@Benchmark
+	public byte loadByte () {
+		return memory.loadByte(loadAddr);
+	}
+
+	@Benchmark
+	public void storeByte () {
+		memory.storeByte(storeAddr, storeValue);
+	}
+
+}
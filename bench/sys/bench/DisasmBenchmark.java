@@ -0,0 +1,79 @@
+package sys.bench;
+
+import static sys.mips.CpuConstants.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import sys.mips.InstructionUtil;
+import sys.util.Logger;
+import sys.util.Symbols;
+
+/**
+ * symbol lookup and disassembly, as used by the logs, the profiler and the
+ * call stack
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisasmBenchmark {
+
+	/** about the number of functions in a kernel */
+	private static final int SYMBOLS = 20000;
+	private static final int BASE = 0x8010_0000;
+	private static final int SIZE = 0x100;
+
+	private Symbols symbols;
+	private final int[] addrs = new int[1024];
+	private final int[] isns = new int[1024];
+	private int n;
+
+	@Setup
+	public void setup () {
+		// don't measure the logging
+		Logger.rootLevel = Integer.MAX_VALUE;
+		symbols = new Symbols();
+		for (int s = 0; s < SYMBOLS; s++) {
+			symbols.put(BASE + s * SIZE, "function" + s, SIZE);
+		}
+		final Random r = new Random(1);
+		final int[] ops = { OP_ADDIU, OP_LW, OP_SW, OP_ORI };
+		for (int i = 0; i < addrs.length; i++) {
+			addrs[i] = BASE + (r.nextInt(SYMBOLS * SIZE) & ~3);
+			// branches and jumps to nearby functions, as a symbol lookup
+			// past the end of the symbols is much slower
+			switch (r.nextInt(4)) {
+				case 0:
+					isns[i] = (OP_SPECIAL << 26) | (r.nextInt(1 << 20) << 6) | FN_ADDU;
+					break;
+				case 1:
+					isns[i] = (OP_BNE << 26) | (r.nextInt(1 << 10) << 16) | ((r.nextInt(SIZE) - SIZE / 2) & 0xffff);
+					break;
+				case 2:
+					isns[i] = (OP_JAL << 26) | (((BASE & 0x0fff_ffff) >>> 2) + r.nextInt(SYMBOLS * SIZE / 4));
+					break;
+				default:
+					isns[i] = (ops[r.nextInt(ops.length)] << 26) | r.nextInt(1 << 26);
+			}
+		}
+	}
+
+	@Benchmark
+	public String getNameOffset () {
+		n = (n + 1) & 1023;
+		return symbols.getNameOffset(addrs[n]);
+	}
+
+	/** without a cpu, so without register and memory values */
+	@Benchmark
+	public String isnString () {
+		n = (n + 1) & 1023;
+		return InstructionUtil.isnString(addrs[n], isns[n], symbols, null);
+	}
+
+}
@@ -0,0 +1,87 @@
+package sys.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import sys.mips.*;
+import sys.util.Logger;
+
+/**
+ * loads and stores of ram in unmapped kseg0 and in tlb mapped useg (software
+ * tlb hits)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+
+	/** useg address of the first mapped page */
+	static final int USEG = 0x40_0000;
+	/**
+	 * distance between the mapped pages, the same as the software tlb so they
+	 * all use the same slot
+	 */
+	static final int STRIDE = 0x10_0000;
+
+	@Param({ "kseg0", "useg" })
+	public String region;
+
+	private Memory memory;
+	private int base;
+	private int offset;
+
+	@Setup
+	public void setup () {
+		// don't measure the logging
+		Logger.rootLevel = Integer.MAX_VALUE;
+		memory = map(new Cpu(32 << 20, true).getMemory());
+		base = region.equals("kseg0") ? 0x8010_0000 : USEG;
+	}
+
+	/** map global 4KB pages at USEG + n * STRIDE to physical 1MB + n * 8KB */
+	static Memory map (final Memory memory) {
+		for (int n = 0; n < 16; n++) {
+			final Entry e = memory.getEntry(n);
+			e.virtualPageNumber2 = (USEG + n * STRIDE) >>> 13;
+			e.pageMask = 0;
+			e.global = true;
+			for (int i = 0; i < 2; i++) {
+				e.data[i].physicalFrameNumber = (0x10_0000 + n * 0x2000 + i * 0x1000) >>> 12;
+				e.data[i].valid = true;
+				e.data[i].dirty = true;
+			}
+		}
+		memory.flushTlb();
+		return memory;
+	}
+
+	/** next word within the page */
+	private int next () {
+		return base + (offset = (offset + 4) & 0xffc);
+	}
+
+	@Benchmark
+	public int loadWord () {
+		return memory.loadWord(next());
+	}
+
+	@Benchmark
+	public void storeWord () {
+		memory.storeWord(next(), offset);
+	}
+
+	@Benchmark
+	public byte loadByte () {
+		return memory.loadByte(next() + 1);
+	}
+
+	@Benchmark
+	public void storeHalfWord () {
+		memory.storeHalfWord(next() + 2, (short) offset);
+	}
+
+}
@@ -0,0 +1,63 @@
+package sys.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import sys.mips.*;
+import sys.util.Logger;
+
+/**
+ * tlb miss exception path: translating a useg address with an empty tlb, and
+ * software tlb misses that search the tlb entries (lookup1)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlbBenchmark {
+
+	/** memory with 16 mapped entries that all use the same software tlb slot */
+	@State(Scope.Thread)
+	public static class Mapped {
+		Memory memory;
+		int page;
+
+		@Setup
+		public void setup () {
+			Logger.rootLevel = Integer.MAX_VALUE;
+			memory = MemoryBenchmark.map(new Cpu(32 << 20, true).getMemory());
+		}
+	}
+
+	private Memory memory;
+	private int vaddr;
+
+	@Setup
+	public void setup () {
+		// don't measure the logging
+		Logger.rootLevel = Integer.MAX_VALUE;
+		memory = new Cpu(32 << 20, true).getMemory();
+	}
+
+	@Benchmark
+	public int refill () {
+		// different page each time
+		vaddr = (vaddr + 0x1000) & 0x7fff_ffff;
+		try {
+			return memory.loadWord(vaddr);
+		} catch (CpuException e) {
+			return e.ep.excode + e.ep.vaddr;
+		}
+	}
+
+	/** load from a different entry each time, so the software tlb always misses */
+	@Benchmark
+	public int lookup1 (final Mapped m) {
+		m.page = (m.page + 1) & 15;
+		return m.memory.loadWord(MemoryBenchmark.USEG + m.page * MemoryBenchmark.STRIDE);
+	}
+
+}
@@ -0,0 +1,119 @@
+package sys.mips;
+
+import static sys.mips.CpuConstants.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import sys.util.Logger;
+
+/**
+ * the interpreter: Cpu.execOp on a synthetic stream of instructions, without
+ * the run loop, blocks or translation. in sys.mips as execOp is package
+ * private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecOpBenchmark {
+
+	private static final int LENGTH = 1024;
+	/** registers used by the stream, t0-t7 */
+	private static final int T0 = 8, TN = 8;
+	/** base register of the loads and stores, s0 */
+	private static final int S0 = 16;
+	/** kseg0 address of the loads and stores */
+	private static final int DATA = 0x8010_0000;
+
+	@Param({ "alu", "branch", "loadstore" })
+	public String stream;
+
+	private Cpu cpu;
+	private int[] isns;
+
+	@Setup
+	public void setup () {
+		// don't measure the logging
+		Logger.rootLevel = Integer.MAX_VALUE;
+		cpu = new Cpu(32 << 20, true);
+		cpu.setPc(0x8000_0000);
+		final Random r = new Random(1);
+		isns = new int[LENGTH];
+		for (int n = 0; n < LENGTH; n++) {
+			final int rs = T0 + r.nextInt(TN), rt = T0 + r.nextInt(TN), rd = T0 + r.nextInt(TN);
+			switch (stream) {
+				case "alu":
+					isns[n] = alu(r.nextInt(7), rs, rt, rd, r.nextInt(0x10000));
+					break;
+				case "branch":
+					isns[n] = branch(r.nextInt(4), rs, rt, r.nextInt(0x10000));
+					break;
+				case "loadstore":
+					isns[n] = loadStore(r.nextInt(4), rt, r.nextInt(0x400) << 2);
+					break;
+				default:
+					throw new RuntimeException("invalid stream " + stream);
+			}
+		}
+		final int[] reg = cpu.getRegisters();
+		for (int n = 0; n < TN; n++) {
+			reg[T0 + n] = r.nextInt();
+		}
+		reg[S0] = DATA;
+	}
+
+	private static int alu (final int k, final int rs, final int rt, final int rd, final int imm) {
+		switch (k) {
+			case 0: return special(FN_ADDU, rs, rt, rd, 0);
+			case 1: return special(FN_SUBU, rs, rt, rd, 0);
+			case 2: return special(FN_XOR, rs, rt, rd, 0);
+			case 3: return special(FN_SLT, rs, rt, rd, 0);
+			case 4: return special(FN_SLL, 0, rt, rd, imm & 31);
+			case 5: return imm(OP_ADDIU, rs, rt, imm);
+			default: return imm(OP_ORI, rs, rt, imm);
+		}
+	}
+
+	private static int branch (final int k, final int rs, final int rt, final int imm) {
+		switch (k) {
+			case 0: return imm(OP_BEQ, rs, rt, imm);
+			case 1: return imm(OP_BNE, rs, rt, imm);
+			case 2: return imm(OP_REGIMM, rs, RT_BGEZ, imm);
+			default: return imm(OP_REGIMM, rs, RT_BLTZ, imm);
+		}
+	}
+
+	private static int loadStore (final int k, final int rt, final int offset) {
+		switch (k) {
+			case 0: return imm(OP_LW, S0, rt, offset);
+			case 1: return imm(OP_SW, S0, rt, offset);
+			case 2: return imm(OP_LBU, S0, rt, offset + 1);
+			default: return imm(OP_SH, S0, rt, offset + 2);
+		}
+	}
+
+	private static int imm (final int op, final int rs, final int rt, final int imm) {
+		return (op << 26) | (rs << 21) | (rt << 16) | (imm & 0xffff);
+	}
+
+	private static int special (final int fn, final int rs, final int rt, final int rd, final int sa) {
+		return (OP_SPECIAL << 26) | (rs << 21) | (rt << 16) | (rd << 11) | (sa << 6) | fn;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LENGTH)
+	public int execOp () {
+		final Cpu cpu = this.cpu;
+		final int[] isns = this.isns;
+		for (int n = 0; n < isns.length; n++) {
+			cpu.execOp(isns[n]);
+		}
+		return cpu.getRegisters()[T0];
+	}
+
+}
@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.Cpu;
 import sys.mips.Device;
 import sys.util.Logger;
@@ -41,6 +45,22 @@ public class GT extends Device {
 		return offset >= 0 && offset < 0x1000;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(configData);
+		out.writeInt(configAddr);
+		out.writeInt(irq);
+		out.writeBoolean(masterByteSwap);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		configData = in.readInt();
+		configAddr = in.readInt();
+		irq = in.readInt();
+		masterByteSwap = in.readBoolean();
+	}
+	
 	@Override
 	public int loadWord (int vaddr) {
 		int v = loadWord2(vaddr);
@@ -0,0 +1,183 @@
+package sys.malta;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.regex.Pattern;
+
+import sys.mips.Cpu;
+import sys.mips.CpuStats;
+import sys.mips.InstructionUtil;
+import sys.mips.Ram;
+
+/**
+ * run one guest without the ui until a cycle budget, a wall clock limit or a
+ * console line matching a pattern, with the console on stdout, and write a
+ * json report of the cpu stats when it stops
+ */
+public class Headless {
+
+	/** cycles between wall clock checks, 10ms at the nominal clock rate */
+	private static final long TIME_CHECK = Cpu.CLOCK_HZ / 100;
+
+	public static void main (final String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("usage: Headless memsizemb kernel|snapshot.snap [kernel args...]");
+			System.out.println("  console output goes to stdout, logs and console output to <kernel name>.log");
+			System.out.println("  -Dcycles=n stops after running n cycles (from the snapshot cycle if restoring)");
+			System.out.println("  -Dtime=s stops after s seconds of wall clock time");
+			System.out.println("  -Dexpect=regex stops when a console line contains a match");
+			System.out.println("  -Dreport=file writes the report to file instead of <kernel name>.json");
+			System.out.println("  -Dram, -Dhle and -Dnativerefill as for MachineRunner");
+			return;
+		}
+
+		final int memsize = Integer.parseInt(args[0]) * 0x100000;
+		final Path path = Paths.get(args[1]);
+		final String name = path.getFileName().toString();
+		final String ramType = System.getProperty("ram");
+		final Machine m = name.endsWith(".snap") ? Machine.restore(name, path, ramType)
+				: Machine.load(name, path, Ram.create(ramType, memsize >>> 2), Arrays.asList(args).subList(2, args.length));
+		m.setOutput(new PrintStream(new FileOutputStream(name + ".log"), true));
+		m.getCpu().setHle(Boolean.getBoolean("hle"));
+		m.getCpu().setNativeRefill(Boolean.getBoolean("nativerefill"));
+
+		final String expect = System.getProperty("expect");
+		final Headless h = new Headless(m, expect != null ? Pattern.compile(expect) : null, (long) (Double.parseDouble(System.getProperty("time", "0")) * 1e9));
+		h.run(Long.getLong("cycles", Long.MAX_VALUE));
+
+		final String report = System.getProperty("report", name + ".json");
+		try (PrintStream ps = new PrintStream(report)) {
+			ps.println(h.report());
+		}
+		System.out.println();
+		System.out.println("stopped: " + h.reason + ", report written to " + report);
+		System.exit(m.getError() != null ? 1 : 0);
+	}
+
+	private final Machine machine;
+	private final Pattern expect;
+	private final long timeLimitNs;
+	/** why the machine stopped: cycles, time, expect or error */
+	private String reason = "cycles";
+	/** the console line that matched, if any */
+	private String matched;
+	private long deadlineNs;
+
+	/** create runner for the machine, with no pattern and no time limit if null and 0 */
+	public Headless (final Machine machine, final Pattern expect, final long timeLimitNs) {
+		this.machine = machine;
+		this.expect = expect;
+		this.timeLimitNs = timeLimitNs;
+	}
+
+	/** run on the current thread for the given number of cycles or until the time limit, the pattern or an error */
+	public void run (final long cycles) {
+		final Cpu cpu = machine.getCpu();
+		cpu.getSupport().addPropertyChangeListener("console", e -> console((String) e.getNewValue()));
+		if (timeLimitNs > 0) {
+			deadlineNs = System.nanoTime() + timeLimitNs;
+			cpu.getEventQueue().add(TIME_CHECK, TIME_CHECK, this::checkTime);
+		}
+		machine.run(cycles);
+		if (machine.getError() != null) {
+			reason = "error";
+		}
+	}
+
+	/** console line from the cpu thread */
+	private void console (final String line) {
+		System.out.print(line);
+		if (expect != null && matched == null && expect.matcher(line).find()) {
+			matched = line.trim();
+			reason = "expect";
+			machine.getCpu().stop();
+		}
+	}
+
+	/** periodic event on the cpu thread */
+	private void checkTime () {
+		if (System.nanoTime() >= deadlineNs && reason.equals("cycles")) {
+			reason = "time";
+			machine.getCpu().stop();
+		}
+	}
+
+	/** the stats of the machine as a json object */
+	public String report () {
+		final Cpu cpu = machine.getCpu();
+		final CpuStats s = machine.getStats();
+		final long cycles = cpu.getCycle() - machine.getStartCycle();
+		final StringBuilder sb = new StringBuilder("{\n");
+		field(sb, "name", string(machine.getName()));
+		field(sb, "reason", string(reason));
+		field(sb, "matched", string(matched));
+		field(sb, "error", string(machine.getError() != null ? machine.getError().toString() : null));
+		field(sb, "startCycle", machine.getStartCycle());
+		field(sb, "endCycle", cpu.getCycle());
+		field(sb, "cycles", cycles);
+		field(sb, "idleCycles", s.idleCycles);
+		field(sb, "durationS", s.durationS());
+		field(sb, "waitS", s.waitS());
+		field(sb, "totalS", s.totalS());
+		field(sb, "waitCount", s.waitCount);
+		field(sb, "nsPerIsn", (double) s.durationNs() / Math.max(1, cycles - s.idleCycles));
+		field(sb, "mips", (cycles - s.idleCycles) / Math.max(1e-9, s.durationS()) / 1e6);
+		field(sb, "scSuccess", s.scSuccess);
+		field(sb, "scFail", s.scFail);
+		field(sb, "translations", s.translations);
+		field(sb, "tlbHits", s.tlbHits);
+		field(sb, "tlbMisses", s.tlbMisses);
+		field(sb, "nativeRefills", s.nativeRefills);
+		field(sb, "hleCalls", s.hleCalls);
+		field(sb, "hleFallbacks", s.hleFallbacks);
+		field(sb, "exceptions", counts(s.exceptions, InstructionUtil::exceptionString));
+		field(sb, "interrupts", counts(s.interrupts, MaltaUtil::interruptString));
+		field(sb, "irqs", counts(s.irqs, MaltaUtil::irqString));
+		sb.setLength(sb.length() - 2);
+		return sb.append("\n}").toString();
+	}
+
+	private static void field (final StringBuilder sb, final String name, final Object value) {
+		sb.append("  \"").append(name).append("\": ").append(value).append(",\n");
+	}
+
+	/** non zero counts as a json object */
+	private static String counts (final int[] a, final IntFunction<String> f) {
+		final StringBuilder sb = new StringBuilder("{");
+		for (int n = 0; n < a.length; n++) {
+			if (a[n] != 0) {
+				sb.append(sb.length() > 1 ? ", " : "").append(string(f.apply(n))).append(": ").append(a[n]);
+			}
+		}
+		return sb.append("}").toString();
+	}
+
+	/** json string, or null */
+	private static String string (final String s) {
+		if (s == null) {
+			return "null";
+		}
+		final StringBuilder sb = new StringBuilder("\"");
+		for (int n = 0; n < s.length(); n++) {
+			final char c = s.charAt(n);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 32 || c > 126) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append("\"").toString();
+	}
+
+	@Override
+	public String toString () {
+		return "Headless[" + machine + " reason=" + reason + "]";
+	}
+
+}
@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.*;
 import sys.util.Logger;
 
@@ -70,6 +74,24 @@ public class KBC extends Device {
 		return offset >= 0 && offset <= M_CMDSTATUS;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(data);
+		out.writeInt(status);
+		out.writeInt(config);
+		out.writeInt(datacmd);
+		out.writeInt(devcmd);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		data = in.readInt();
+		status = in.readInt();
+		config = in.readInt();
+		datacmd = in.readInt();
+		devcmd = in.readInt();
+	}
+	
 	@Override
 	public byte loadByte (final int addr) {
 		final int offset = addr - baseAddr;
@@ -0,0 +1,173 @@
+package sys.malta;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import sys.mips.Cpu;
+import sys.mips.CpuStats;
+import sys.mips.CpuUtil;
+import sys.mips.HeapRam;
+import sys.mips.Memory;
+import sys.mips.Ram;
+import sys.mips.Snapshot;
+import sys.util.Log;
+import sys.util.Symbols;
+
+/**
+ * one emulated malta board, owns the cpu, memory, devices and symbols of a
+ * guest. any number of machines can run at once as long as each is run on its
+ * own thread.
+ */
+public class Machine implements PropertyChangeListener {
+
+	/** create machine from a snapshot written by save */
+	public static Machine restore (final String name, final Path path) throws IOException {
+		return restore(name, path, null);
+	}
+
+	/** create machine from a snapshot with the given type of ram (see Ram.create) */
+	public static Machine restore (final String name, final Path path, final String ramType) throws IOException {
+		return new Machine(name, Snapshot.load(path, ramType));
+	}
+
+	/** load kernel into heap ram and set up the kernel command line */
+	public static Machine load (final String name, final Path path, final int memsize, final List<String> args) throws Exception {
+		return load(name, path, new HeapRam(memsize >>> 2), args);
+	}
+
+	/** load kernel into the ram and set up the kernel command line */
+	public static Machine load (final String name, final Path path, final Ram ram, final List<String> args) throws Exception {
+		final int memsize = ram.size() * 4;
+		final List<String> argsList = new ArrayList<>();
+		// linux ignores first arg...
+		argsList.add("linux");
+		argsList.addAll(args);
+
+		final List<String> env = new ArrayList<>();
+		env.add("memsize");
+		env.add(String.valueOf(memsize));
+
+		try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+			final int[] top = new int[1];
+			final Cpu cpu = CpuUtil.loadElf(chan, ram, top);
+			CpuUtil.setMainArgs(cpu, top[0] + 0x100000, argsList, env);
+			return new Machine(name, cpu);
+		}
+	}
+
+	private final String name;
+	private final Cpu cpu;
+	/** where logs and console output go, if anywhere */
+	private volatile PrintStream out;
+	/** why the machine stopped, if it didn't reach the cycle limit */
+	private volatile Throwable error;
+	/** cycle at the start of the last run */
+	private volatile long startCycle;
+
+	public Machine (final String name, final Cpu cpu) {
+		this.name = name;
+		this.cpu = cpu;
+		cpu.getSupport().addPropertyChangeListener(this);
+	}
+
+	public String getName () {
+		return name;
+	}
+
+	public Cpu getCpu () {
+		return cpu;
+	}
+
+	public Memory getMemory () {
+		return cpu.getMemory();
+	}
+
+	public Malta getMalta () {
+		return cpu.getMemory().getMalta();
+	}
+
+	public Symbols getSymbols () {
+		return cpu.getSymbols();
+	}
+
+	public CpuStats getStats () {
+		return cpu.getCpuStats();
+	}
+
+	public Throwable getError () {
+		return error;
+	}
+	
+	public long getStartCycle () {
+		return startCycle;
+	}
+
+	/** send logs and console output to the stream, or nowhere if null */
+	public void setOutput (final PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * run on the current thread for the given number of cycles from the
+	 * current cycle (so a restored or forked machine runs the whole budget),
+	 * or until an error
+	 */
+	public void run (final long cycles) {
+		startCycle = cpu.getCycle();
+		cpu.setCycleBudget(cycles);
+		try {
+			cpu.run();
+		} catch (RuntimeException e) {
+			error = e;
+		}
+	}
+
+	/** write the state of the machine to a snapshot, the machine must not be running */
+	public void save (final Path path) throws IOException {
+		Snapshot.save(cpu, path);
+	}
+
+	/** stop listening to the cpu, e.g. when replacing the machine, the machine must not be running */
+	public void dispose () {
+		cpu.getSupport().removePropertyChangeListener(this);
+	}
+	
+	/**
+	 * create a copy of the machine that shares ram pages with this one until
+	 * they are written to, the machine must not be running
+	 */
+	public Machine fork (final String name) {
+		return new Machine(name, cpu.fork());
+	}
+
+	@Override
+	public void propertyChange (final PropertyChangeEvent evt) {
+		final PrintStream out = this.out;
+		if (out != null) {
+			switch (evt.getPropertyName()) {
+				case "console":
+					out.print(evt.getNewValue());
+					break;
+				case "logs":
+					for (Log l : (Log[]) evt.getNewValue()) {
+						out.println(l);
+					}
+					break;
+				default:
+			}
+		}
+	}
+
+	@Override
+	public String toString () {
+		return "Machine[" + name + " cycle=" + cpu.getPublishedCycle() + "]";
+	}
+
+}
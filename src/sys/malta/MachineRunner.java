@@ -0,0 +1,166 @@
+package sys.malta;
+
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+import sys.mips.CpuStats;
+import sys.mips.CallStack;
+import sys.mips.Profiler;
+import sys.mips.Ram;
+
+/**
+ * boot several guests at once on a fixed thread pool, each for a number of
+ * cycles, and print their stats
+ */
+public class MachineRunner {
+
+	public static void main (final String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("usage: MachineRunner threads cycles memsizemb kernel[:args]|snapshot.snap[*forks] ...");
+			System.out.println("  logs and console output of each guest go to <kernel name>-<n>.log");
+			System.out.println("  snapshot*n restores the snapshot once and runs n copy on write forks of it");
+			System.out.println("  each guest runs for the given number of cycles from its boot or snapshot");
+			System.out.println("  -Dram=heap|direct allocates guest ram on or off the java heap (forks of direct ram are copies)");
+			System.out.println("  -Dhle=true runs memcpy, memset, clear_page etc directly instead of emulating them");
+			System.out.println("  -Dnativerefill=true walks the page tables for tlb refills instead of running the guest handler");
+			System.out.println("  -Dprofile=n samples the pc every n cycles, writing <name>.folded (for flamegraph.pl) and <name>.prof");
+			System.out.println("  -Dcalls=true keeps a shadow call stack, writing <name>.calls (and full stacks to <name>.folded)");
+			return;
+		}
+
+		final int threads = Integer.parseInt(args[0]);
+		final long cycles = Long.parseLong(args[1]);
+		final int memsize = Integer.parseInt(args[2]) * 0x100000;
+		final String ramType = System.getProperty("ram");
+		if (ramType != null && !ramType.equals("heap") && !ramType.equals("direct")) {
+			throw new Exception("invalid ram type " + ramType);
+		}
+		final MachineRunner runner = new MachineRunner(threads);
+
+		for (int n = 3; n < args.length; n++) {
+			final int f = args[n].lastIndexOf("*");
+			if (f > 0) {
+				final Path path = Paths.get(args[n].substring(0, f));
+				final Machine parent = Machine.restore(path.getFileName().toString(), path, ramType);
+				final int forks = Integer.parseInt(args[n].substring(f + 1));
+				for (int i = 0; i < forks; i++) {
+					final Machine m = parent.fork(parent.getName() + "-" + (n - 3) + "-" + i);
+					m.setOutput(new PrintStream(new FileOutputStream(m.getName() + ".log"), true));
+					runner.submit(() -> m, cycles);
+				}
+				continue;
+			}
+
+			final String[] a = args[n].split(":", 2);
+			final Path path = Paths.get(a[0]);
+			final String name = path.getFileName() + "-" + (n - 3);
+			final List<String> kargs = a.length > 1 ? Arrays.asList(a[1].split(" +")) : Collections.emptyList();
+			runner.submit(() -> {
+				final Machine m = path.toString().endsWith(".snap") ? Machine.restore(name, path, ramType) : Machine.load(name, path, Ram.create(ramType, memsize >>> 2), kargs);
+				m.setOutput(new PrintStream(new FileOutputStream(name + ".log"), true));
+				return m;
+			}, cycles);
+		}
+
+		runner.print(System.out);
+	}
+
+	private final ExecutorService pool;
+	private final List<Future<Machine>> futures = new ArrayList<>();
+
+	public MachineRunner (final int threads) {
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			final Thread t = new Thread(r);
+			t.setName("Cpu-" + t.getName());
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	/** create a machine on the pool and run it for the given number of cycles from its current cycle */
+	public void submit (final Callable<Machine> factory, final long cycles) {
+		futures.add(pool.submit(() -> {
+			final Machine m = factory.call();
+			m.getCpu().setHle(Boolean.getBoolean("hle"));
+			m.getCpu().setNativeRefill(Boolean.getBoolean("nativerefill"));
+			m.getCpu().setCallStack(Boolean.getBoolean("calls"));
+			final long interval = Long.getLong("profile", 0);
+			final Profiler p = interval > 0 ? new Profiler(m.getCpu(), interval) : null;
+			if (p != null) {
+				p.start();
+			}
+			m.run(cycles);
+			if (p != null) {
+				p.stop();
+				try (PrintStream ps = new PrintStream(m.getName() + ".folded")) {
+					p.printCollapsed(ps);
+				}
+				try (PrintStream ps = new PrintStream(m.getName() + ".prof")) {
+					p.printTop(ps, 50);
+				}
+			}
+			final CallStack cs = m.getCpu().getCallStack();
+			if (cs != null) {
+				cs.unwind(m.getCpu().getCycle());
+				try (PrintStream ps = new PrintStream(m.getName() + ".calls")) {
+					cs.print(ps, m.getCpu().getSymbols(), 50);
+				}
+			}
+			return m;
+		}));
+	}
+
+	/** wait for all the machines to stop */
+	public List<Machine> shutdown () throws InterruptedException {
+		pool.shutdown();
+		final List<Machine> machines = new ArrayList<>();
+		for (Future<Machine> f : futures) {
+			try {
+				machines.add(f.get());
+			} catch (ExecutionException e) {
+				// couldn't load
+				e.getCause().printStackTrace();
+			}
+		}
+		return machines;
+	}
+
+	/** print stats of each machine and the totals */
+	public void print (final PrintStream ps) throws InterruptedException {
+		long cycles = 0, idle = 0, ns = 0, misses = 0, hle = 0;
+		int translations = 0, errors = 0;
+		final int[] exceptions = new int[32];
+
+		final List<Machine> machines = shutdown();
+		for (Machine m : machines) {
+			final CpuStats s = m.getStats();
+			// cycles run, not including those before the snapshot
+			final long c = m.getCpu().getCycle() - m.getStartCycle();
+			ps.println(String.format("%-24s cycles=%d idle=%d time=%.3f ns/isn=%d tlbmisses=%d refills=%d blocks=%d hle=%d exceptions=%s%s",
+					m.getName(), c, s.idleCycles, s.durationS(), s.durationNs() / Math.max(1, c - s.idleCycles),
+					s.tlbMisses, s.nativeRefills, s.translations, s.hleCalls, s.exceptionsString(),
+					m.getError() != null ? " error=" + m.getError() : ""));
+			cycles += c;
+			idle += s.idleCycles;
+			ns += s.durationNs();
+			misses += s.tlbMisses;
+			translations += s.translations;
+			hle += s.hleCalls;
+			errors += m.getError() != null ? 1 : 0;
+			for (int n = 0; n < exceptions.length; n++) {
+				exceptions[n] += s.exceptions[n];
+			}
+		}
+
+		final CpuStats total = new CpuStats();
+		System.arraycopy(exceptions, 0, total.exceptions, 0, exceptions.length);
+		ps.println(String.format("total: machines=%d errors=%d cycles=%d idle=%d cpu time=%.3f ns/isn=%d tlbmisses=%d blocks=%d hle=%d exceptions=%s",
+				machines.size(), errors, cycles, idle, ns / 1e9, ns / Math.max(1, cycles - idle),
+				misses, translations, hle, total.exceptionsString()));
+	}
+
+}
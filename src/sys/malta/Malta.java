@@ -40,12 +40,21 @@ public class Malta extends MultiDevice {
 	
 	private static final Logger log = new Logger("Malta");
 	
+	/** number of 4KB pages in the address space of the board */
+	private static final int PAGES = 0x2_0000;
+	
 	/** the northbridge */
 	private final GT gt;
 	private final MaltaDisplay display;
 	/** the southbridge */
 	private final PIIX4 p4;
 	private final Uart cbusUart;
+	/**
+	 * innermost devices of each page, built on first access. either one device
+	 * for the whole page or one for each address. a null device means
+	 * unmapped.
+	 */
+	private final Device[][] pageTable = new Device[PAGES][];
 	
 	public Malta (final Device parent, final int baseAddr) {
 		super(parent, baseAddr);
@@ -70,17 +79,31 @@ public class Malta extends MultiDevice {
 	}
 	
 	@Override
-	public void storeWord (final int addr, final int value) {
+	protected Device getMapped (final int addr) {
 		final int offset = offset(addr);
-		
-		if (offset >= M_UNCACHED_EX_H && offset < M_UNCACHED_EX_H + 0x100) {
-			// should map straight through to memory?
-			// the values look like mips code...
-			log.println("ignore set uncached exception handler " + getCpu().getSymbols().getNameOffset(baseAddr + addr) + " <= " + Integer.toHexString(value));
-			
+		if ((offset >>> 12) < PAGES) {
+			Device[] t = pageTable[offset >>> 12];
+			if (t == null) {
+				t = pageTable[offset >>> 12] = page(offset & ~0xfff);
+			}
+			return t.length == 1 ? t[0] : t[offset & 0xfff];
 		} else {
-			super.storeWord(addr, value);
+			return super.getMapped(addr);
+		}
+	}
+	
+	/** find the innermost devices of the page */
+	private Device[] page (final int pageOffset) {
+		final Device[] t = new Device[0x1000];
+		boolean same = true;
+		for (int n = 0; n < t.length; n++) {
+			final int addr = baseAddr + pageOffset + n;
+			final Device d = super.getMapped(addr);
+			t[n] = d != null ? d.getDevice(addr) : null;
+			same = same && t[n] == t[0];
 		}
+		log.println("page table " + Integer.toHexString(pageOffset) + (same ? " = " + t[0] : " mixed"));
+		return same ? new Device[] { t[0] } : t;
 	}
 	
 }
@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.Cpu;
 import sys.mips.Device;
 import sys.util.Logger;
@@ -44,6 +48,24 @@ public class MaltaDisplay extends Device {
 		return offset >= 0 && offset < 0x100;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(ledBar);
+		out.writeInt(asciiWord);
+		for (int n = 0; n < asciiPos.length; n++) {
+			out.writeChar(asciiPos[n]);
+		}
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		ledBar = in.readInt();
+		asciiWord = in.readInt();
+		for (int n = 0; n < asciiPos.length; n++) {
+			asciiPos[n] = in.readChar();
+		}
+	}
+	
 	@Override
 	public void storeWord (final int addr, final int value) {
 		final int offset = addr - baseAddr;
@@ -1,5 +1,8 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
 
 import sys.mips.Device;
@@ -26,7 +29,36 @@ public class MultiDevice extends Device {
 	public boolean isMapped (final int addr) {
 		return getMapped(addr) != null;
 	}
+	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		for (Device d : devices) {
+			d.saveState(out);
+		}
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		for (Device d : devices) {
+			d.loadState(in);
+		}
+	}
 
+	/**
+	 * return the innermost device mapped at the address. addresses mapped by
+	 * this device but none of its devices are handled by this device, so
+	 * subclasses must not intercept addresses mapped by their devices.
+	 */
+	@Override
+	public Device getDevice (final int addr) {
+		if (isMapped(addr)) {
+			final Device d = getMapped(addr);
+			return d != null ? d.getDevice(addr) : this;
+		} else {
+			return null;
+		}
+	}
+	
 	@Override
 	public byte loadByte (final int addr) {
 		Device d = getMapped(addr);
@@ -75,7 +107,8 @@ public class MultiDevice extends Device {
 		}
 	}
 	
-	private Device getMapped (final int addr) {
+	/** return the device (not necessarily innermost) mapped at the address, or null */
+	protected Device getMapped (final int addr) {
 		for (Device d : devices) {
 			if (d.isMapped(addr)) {
 				return d;
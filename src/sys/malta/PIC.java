@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.Device;
 import sys.util.Logger;
 import sys.util.Symbols;
@@ -116,6 +120,30 @@ public class PIC extends Device {
 		return offset >= 0 && offset < 2;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(icw1);
+		out.writeInt(icw2);
+		out.writeInt(icw3);
+		out.writeInt(icw4);
+		out.writeInt(ocw1);
+		out.writeInt(ocw2);
+		out.writeInt(ocw3);
+		out.writeInt(init);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		icw1 = in.readInt();
+		icw2 = in.readInt();
+		icw3 = in.readInt();
+		icw4 = in.readInt();
+		ocw1 = in.readInt();
+		ocw2 = in.readInt();
+		ocw3 = in.readInt();
+		init = in.readInt();
+	}
+	
 	@Override
 	public byte loadByte (final int addr) {
 		final int offset = addr - baseAddr;
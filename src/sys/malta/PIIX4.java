@@ -3,8 +3,6 @@ package sys.malta;
 import java.util.Arrays;
 
 import sys.mips.Cpu;
-import sys.mips.CpuConstants;
-import sys.mips.CpuExceptionParams;
 import sys.mips.Device;
 import sys.util.Logger;
 import sys.util.Symbols;
@@ -104,7 +102,8 @@ public class PIIX4 extends MultiDevice {
 		
 		// should this queue the interrupts here?
 		// should this set the irq in the gt?
-		getCpu().addException(new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, irq));
+		final Cpu cpu = getCpu();
+		cpu.addException(cpu.getIrqParams(irq));
 		return;
 	}
 }
@@ -1,13 +1,14 @@
 package sys.malta;
 
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import sys.mips.Cpu;
 import sys.mips.CpuConstants;
 import sys.mips.CpuExceptionParams;
 import sys.mips.Device;
+import sys.mips.EventQueue;
 import sys.util.Logger;
 import sys.util.Symbols;
 
@@ -26,7 +27,8 @@ public class PIT extends Device {
 	private int timerCounter0;
 	private int timerControlWord = -1;
 	private int timerCounterByte;
-	private Future<?> timerFuture;
+	private final CpuExceptionParams timerParams = new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_TIMER);
+	private final Runnable timerEvent = () -> getCpu().addException(timerParams);
 	
 	public PIT(Device parent, int baseAddr) {
 		super(parent, baseAddr);
@@ -43,6 +45,22 @@ public class PIT extends Device {
 		return offset >= 0 && offset < 4;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(timerCounter0);
+		out.writeInt(timerControlWord);
+		out.writeInt(timerCounterByte);
+		getCpu().getEventQueue().save(out, timerEvent);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		timerCounter0 = in.readInt();
+		timerControlWord = in.readInt();
+		timerCounterByte = in.readInt();
+		getCpu().getEventQueue().load(in, timerEvent);
+	}
+	
 	@Override
 	public void storeByte (final int addr, final byte value) {
 		final int offset = addr - baseAddr;
@@ -91,27 +109,22 @@ public class PIT extends Device {
 		} else if (timerCounterByte == 1) {
 			timerCounter0 = (timerCounter0 & 0xff) | (value << 8);
 			timerCounterByte = 0;
-			if (timerFuture != null) {
-				timerFuture.cancel(false);
-			}
 			
-			final Cpu cpu = getCpu();
-			final ScheduledExecutorService e = cpu.getExecutor();
-			final CpuExceptionParams ep = new CpuExceptionParams(CpuConstants.EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, MaltaUtil.IRQ_TIMER);
-			final Runnable r = () -> cpu.addException(ep);
+			final EventQueue e = getCpu().getEventQueue();
+			e.remove(timerEvent);
 			
 			if (timerControlWord == 0x34) {
 				// counter never reaches 0...
 				final double hz = 1193182.0 / (timerCounter0 - 1.5);
-				final long durns = Math.round(1000000000.0 / hz);
-				log.println("schedule pit at fixed rate " + hz + " hz " + (1.0/hz) + " s " + durns + " ns");
-				timerFuture = e.scheduleAtFixedRate(r, durns, durns, TimeUnit.NANOSECONDS);
+				final long cycles = Math.round(Cpu.CLOCK_HZ / hz);
+				log.println("schedule pit at fixed rate " + hz + " hz " + (1.0/hz) + " s " + cycles + " cycles");
+				e.add(cycles, cycles, timerEvent);
 				
 			} else if (timerControlWord == 0x38) {
 				final double s = (timerCounter0 - 0.5) / 1193182.0;
-				final long ns = (long) (s * 1_000_000_000.0);
-				log.println("schedule pit once %.4f s %s ns", s, ns);
-				timerFuture = e.schedule(r, ns, TimeUnit.NANOSECONDS);
+				final long cycles = Math.round(s * Cpu.CLOCK_HZ);
+				log.println("schedule pit once %.4f s %s cycles", s, cycles);
+				e.add(cycles, timerEvent);
 			}
 			
 		} else {
@@ -1,8 +1,11 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.util.*;
-import java.util.concurrent.*;
 
 import sys.mips.*;
 import sys.util.*;
@@ -16,6 +19,9 @@ public class RTC extends Device {
 	public static final int M_DAT = 0x1;
 	
 	private static final long NS_IN_S = 1000_000_000;
+	private static final long MS_IN_DAY = 86_400_000;
+	/** cycles in a millisecond */
+	private static final long CYCLES_IN_MS = Cpu.CLOCK_HZ / 1000;
 	
 	private static final int I_SEC = 0x0;
 	private static final int I_SECALM = 0x1;
@@ -64,21 +70,31 @@ public class RTC extends Device {
 	private static final int C_IRQF = 0x80;
 	
 	public static void main (String[] args) throws Exception {
-		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		// virtual time, advanced by hand
+		final long[] time = new long[1];
+		final EventQueue events = new EventQueue(() -> time[0]);
 		final RTC dev = new RTC(null, 0) {
 			@Override
-			protected ScheduledExecutorService getExecutor () {
-				return executor;
+			protected EventQueue getEventQueue () {
+				return events;
 			}
 		};
 		dev.write(I_REGB, 0);
-		System.out.println("12h+bcd time=" + dev.readtime(true));
+		System.out.println("12h+bcd time=" + dev.readtime(true, time));
 		dev.write(I_REGB, B_HF24);
-		System.out.println("24h+bcd time=" + dev.readtime(true));
+		System.out.println("24h+bcd time=" + dev.readtime(true, time));
 		dev.write(I_REGB, B_DMBIN);
-		System.out.println("12h+bin time=" + dev.readtime(false));
+		System.out.println("12h+bin time=" + dev.readtime(false, time));
 		dev.write(I_REGB, B_HF24 | B_DMBIN);
-		System.out.println("24h+bin time=" + dev.readtime(false));
+		System.out.println("24h+bin time=" + dev.readtime(false, time));
+		
+		for (long d = -800_000; d < 800_000; d++) {
+			final LocalDate ld = LocalDate.ofEpochDay(d);
+			final int date = date(d);
+			if (date != (ld.getYear() << 9 | ld.getMonthValue() << 5 | ld.getDayOfMonth())) {
+				throw new Exception("date " + d + " is " + ld + " not " + Integer.toHexString(date));
+			}
+		}
 		
 		for (int n = 0; n < 16; n++) {
 			System.out.println(String.format("rsx %4s = %-16s", Integer.toBinaryString(n), new BigDecimal(rateSelectPeriod(n))));
@@ -87,40 +103,41 @@ public class RTC extends Device {
 		// test interrupts...
 		dev.write(I_REGB, 0);
 		dev.write(I_REGA, 0x2f); // 2 = normal dvx, f = 500ms pi
-		long st = System.nanoTime(), t;
-		while ((t = System.nanoTime()) < st + NS_IN_S * 5) {
+		final long ms = Cpu.CLOCK_HZ / 1000;
+		while (time[0] < Cpu.CLOCK_HZ * 5) {
+			time[0] += ms;
+			events.poll(time[0]);
 			int c1 = dev.read(I_REGC);
 			if ((c1 & C_PF) != 0) {
-				System.out.println("pf set at " + (1.0*(t-st))/NS_IN_S);
+				System.out.println("pf set at " + (1.0*time[0])/Cpu.CLOCK_HZ);
 				int c2 = dev.read(I_REGC);
 				if (c2 != 0) {
 					throw new Exception("flag not cleared...");
 				}
 			}
-			Thread.sleep(1);
 		}
 		
 		// disable timer
 		dev.write(I_REGA, 0x20);
 		dev.read(I_REGC);
-		Thread.sleep(1000);
-		if (dev.read(I_REGC) != 0) {
+		time[0] += Cpu.CLOCK_HZ;
+		events.poll(time[0]);
+		if (dev.read(I_REGC) != 0 || events.size() != 0) {
 			throw new Exception("flag set...");
 		}
 		
-		executor.shutdown();
 		System.out.println("done");
 	}
 	
-	private String readtime (boolean bcd) throws Exception {
+	private String readtime (boolean bcd, long[] time) throws Exception {
 		// wait for uip
 		int s;
 		for (s = 0; (read(I_REGA) & A_UIP) == 0; s++) {
-			Thread.sleep(1);
+			time[0] += CYCLES_IN_MS;
 		}
 		//System.out.println("uip set after " + s);
 		for (s = 0; (read(I_REGA) & A_UIP) != 0; s++) {
-			Thread.sleep(1);
+			time[0] += CYCLES_IN_MS;
 		}
 		//System.out.println("uip clear after " + s);
 		return Arrays.toString(new String[] {
@@ -157,13 +174,27 @@ public class RTC extends Device {
 	private int controlb;
 	private int controlc;
 	private double period;
-	private Future<?> timerFuture;
+	private final Runnable timerEvent = () -> fireInt();
+	/** local time in milliseconds at virtual time 0 */
+	private long epoch;
 	
 	public RTC(Device parent, int baseAddr) {
 		super(parent, baseAddr);
 		// binary not bcd
 		// if this is missing you get a weird error about persistent clock invalid
 		this.controlb = B_HF24 | B_DMBIN;
+		final long t = System.currentTimeMillis();
+		this.epoch = t + TimeZone.getDefault().getOffset(t);
+	}
+	
+	/** local time in milliseconds at virtual time 0 */
+	public long getEpoch () {
+		return epoch;
+	}
+	
+	/** set the local time in milliseconds at virtual time 0, e.g. to make the guest time repeatable */
+	public void setEpoch (long epoch) {
+		this.epoch = epoch;
 	}
 	
 	@Override
@@ -177,6 +208,30 @@ public class RTC extends Device {
 		return offset >= 0 && offset < 2;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(rtcadr);
+		out.writeInt(rtcdat);
+		out.writeInt(controla);
+		out.writeInt(controlb);
+		out.writeInt(controlc);
+		out.writeDouble(period);
+		getEventQueue().save(out, timerEvent);
+		out.writeLong(epoch);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		rtcadr = in.readInt();
+		rtcdat = in.readInt();
+		controla = in.readInt();
+		controlb = in.readInt();
+		controlc = in.readInt();
+		period = in.readDouble();
+		getEventQueue().load(in, timerEvent);
+		epoch = in.readLong();
+	}
+	
 	@Override
 	public byte loadByte (final int addr) {
 		final int offset = addr - baseAddr;
@@ -220,36 +275,42 @@ public class RTC extends Device {
 		log.println(0, "rtc adr write " + value);
 		rtcadr = value & 0xff;
 		// should freeze this if reg c set is 1
-		final Calendar c = new GregorianCalendar();
+		// local time from virtual time
+		final long t = epoch + getEventQueue().time() / CYCLES_IN_MS;
+		final long days = Math.floorDiv(t, MS_IN_DAY);
+		final int ms = (int) Math.floorMod(t, MS_IN_DAY);
 		
 		switch (value) {
 			case I_SEC:
-				rtcdat = toDataMode(c.get(Calendar.SECOND));
+				rtcdat = toDataMode(ms / 1000 % 60);
 				break;
 			case I_MIN:
-				rtcdat = toDataMode(c.get(Calendar.MINUTE));
+				rtcdat = toDataMode(ms / 60_000 % 60);
 				break;
-			case I_HOUR:
+			case I_HOUR: {
 				// depends on control register b hour format
+				final int h = ms / 3600_000;
 				if ((controlb & B_HF24) != 0) {
-					rtcdat = toDataMode(c.get(Calendar.HOUR_OF_DAY));
+					rtcdat = toDataMode(h);
 				} else {
-					boolean pm = c.get(Calendar.AM_PM) == Calendar.PM;
-					rtcdat = toDataMode(c.get(Calendar.HOUR) | (pm ? 0x80 : 0));
+					// 1-12, pm in top bit
+					rtcdat = toDataMode((h + 11) % 12 + 1) | (h >= 12 ? 0x80 : 0);
 				}
 				break;
+			}
 			case I_DOW:
-				rtcdat = toDataMode(c.get(Calendar.DAY_OF_WEEK));
+				// 1970-01-01 was a thursday, sunday is 1
+				rtcdat = toDataMode((int) Math.floorMod(days + 4, 7L) + 1);
 				break;
 			case I_DOM:
-				rtcdat = toDataMode(c.get(Calendar.DAY_OF_MONTH));
+				rtcdat = toDataMode(date(days) & 0x1f);
 				break;
 			case I_MONTH:
-				rtcdat = toDataMode(c.get(Calendar.MONTH) + 1);
+				rtcdat = toDataMode((date(days) >> 5) & 0xf);
 				break;
 			case I_YEAR:
 				// its only a byte...
-				rtcdat = toDataMode(c.get(Calendar.YEAR) % 100);
+				rtcdat = toDataMode((date(days) >> 9) % 100);
 				break;
 			case I_SECALM:
 			case I_MINALM:
@@ -260,7 +321,7 @@ public class RTC extends Device {
 			case I_REGA: {
 				// register a
 				// update in progress
-				final boolean uip = c.get(Calendar.MILLISECOND) >= 990;
+				final boolean uip = ms % 1000 >= 990;
 				rtcdat = controla | (uip ? A_UIP : 0);
 				break;
 			}
@@ -305,14 +366,11 @@ public class RTC extends Device {
 		if (period != rsp) {
 			log.println("period changed from " + period + " to " + rsp);
 			period = rsp;
-			if (timerFuture != null) {
-				timerFuture.cancel(false);
-				timerFuture = null;
-			}
+			getEventQueue().remove(timerEvent);
 			
 			if (rsp > 0) {
-				long rspNs = (long) (rsp * NS_IN_S);
-				timerFuture = getExecutor().scheduleAtFixedRate(() -> fireInt(), rspNs, rspNs, TimeUnit.NANOSECONDS);
+				long rspCycles = Math.round(rsp * Cpu.CLOCK_HZ);
+				getEventQueue().add(rspCycles, rspCycles, timerEvent);
 			}
 		}
 	}
@@ -328,6 +386,24 @@ public class RTC extends Device {
 		}
 	}
 
+	/**
+	 * year, month and day of month packed as (y << 9 | m << 5 | d) of the days
+	 * since 1970-01-01 (proleptic gregorian, from howard hinnant's
+	 * civil_from_days)
+	 */
+	private static int date (final long days) {
+		final long z = days + 719468;
+		final long era = Math.floorDiv(z, 146097);
+		final int doe = (int) (z - era * 146097);
+		final int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		final int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		final int mp = (5 * doy + 2) / 153;
+		final int d = doy - (153 * mp + 2) / 5 + 1;
+		final int m = mp < 10 ? mp + 3 : mp - 9;
+		final int y = (int) (yoe + era * 400) + (m <= 2 ? 1 : 0);
+		return y << 9 | m << 5 | d;
+	}
+	
 	private static double rateSelectPeriod (int rsx) {
 		double p = 0;
 		if (rsx >= 3) {
@@ -359,8 +435,8 @@ public class RTC extends Device {
 		return l.toString();
 	}
 	
-	protected ScheduledExecutorService getExecutor() {
-		return getCpu().getExecutor();
+	protected EventQueue getEventQueue() {
+		return getCpu().getEventQueue();
 	}
 	
 }
@@ -1,5 +1,9 @@
 package sys.malta;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import sys.mips.Cpu;
 import sys.mips.Device;
 import sys.util.Logger;
@@ -66,6 +70,33 @@ public class Uart extends Device {
 		return offset >= 0 && offset < 8;
 	}
 	
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		out.writeInt(ier);
+		out.writeInt(mcr);
+		out.writeInt(lcr);
+		out.writeInt(iir);
+		out.writeInt(lsr);
+		out.writeInt(rxRead);
+		out.writeInt(rxWrite);
+		out.write(rxFifo);
+		out.writeUTF(consoleSb.toString());
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		ier = in.readInt();
+		mcr = in.readInt();
+		lcr = in.readInt();
+		iir = in.readInt();
+		lsr = in.readInt();
+		rxRead = in.readInt();
+		rxWrite = in.readInt();
+		in.readFully(rxFifo);
+		consoleSb.setLength(0);
+		consoleSb.append(in.readUTF());
+	}
+	
 	@Override
 	public int loadWord (int addr) {
 		return loadByte(addr) & 0xff;
@@ -80,7 +111,7 @@ public class Uart extends Device {
 			case M_RX_TX:
 				// should probably check if fifo enabled first
 				if (rxRead == rxWrite) {
-					log.println("uart rx underrun");
+					log.println(Logger.DEBUG, "uart rx underrun");
 					return 0;
 				} else {
 					final byte x = rxFifo[rxRead];
@@ -90,7 +121,7 @@ public class Uart extends Device {
 						// reset ready bit
 						lsr &= ~LSR_DR;
 					}
-					log.println("uart receiver buffer read %x remaining %d", x, rem);
+					log.println(Logger.DEBUG, () -> String.format("uart receiver buffer read %x remaining %d", x, rem));
 					return x;
 				}
 			case M_LSR: {
@@ -147,7 +178,7 @@ public class Uart extends Device {
 					if (console) {
 						consoleWrite(value);
 					} else {
-						log.println("write " + Integer.toHexString(value & 0xff));
+						log.println(Logger.DEBUG, () -> "write " + Integer.toHexString(value & 0xff));
 					}
 				}
 				return;
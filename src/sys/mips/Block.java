@@ -0,0 +1,35 @@
+package sys.mips;
+
+/**
+ * a basic block of instructions, starting at a physical address and ending
+ * with the delay slot of the terminating branch (or the end of the page)
+ */
+public final class Block {
+
+	/** physical word index of the first instruction */
+	public final int index;
+	/** the instructions */
+	public final int[] isns;
+	/** instruction set ids of the instructions, for counting */
+	public final int[] ids;
+	/** number of times the block has been entered at the start */
+	public int count;
+	/** translated instructions, null until the block is hot */
+	Op[] ops;
+	/** high level emulation of the routine starting here, if any */
+	Hle.Routine routine;
+
+	public Block (int index, int[] isns) {
+		this.index = index;
+		this.isns = isns;
+		this.ids = new int[isns.length];
+		for (int n = 0; n < isns.length; n++) {
+			ids[n] = InstructionSet.getInstance().getId(isns[n]);
+		}
+	}
+
+	@Override
+	public String toString () {
+		return String.format("Block[index=%x length=%d]", index, isns.length);
+	}
+}
@@ -0,0 +1,130 @@
+package sys.mips;
+
+import static sys.mips.CpuConstants.*;
+import static sys.mips.CpuFunctions.*;
+import static sys.mips.MemoryUtil.*;
+
+/**
+ * direct mapped cache of basic blocks keyed by physical address. blocks never
+ * cross a page, and all the blocks of a page are discarded when the page is
+ * written to.
+ */
+public final class BlockCache {
+
+	/** words in a 4KB page */
+	public static final int PAGE_WORDS = 0x400;
+
+	/** number of entries, must be a power of 2 and at least PAGE_WORDS */
+	private static final int SIZE = 0x10000;
+	/** physical page of the tlb refill vector */
+	private static final int REFILL_PAGE = (EXV_TLBREFILL & KSEG_MASK) >>> 12;
+
+	private final Block[] blocks = new Block[SIZE];
+	/** pages that currently have blocks */
+	private final boolean[] codePages;
+	private final Ram ram;
+	private final Cpu cpu;
+
+	public BlockCache (Cpu cpu, Ram ram) {
+		this.cpu = cpu;
+		this.ram = ram;
+		this.codePages = new boolean[ram.pages()];
+	}
+
+	/** get block starting at physical word index, creating it if necessary */
+	public final Block get (final int index) {
+		final Block b = blocks[index & (SIZE - 1)];
+		if (b != null && b.index == index) {
+			return b;
+		} else {
+			return create(index);
+		}
+	}
+
+	/** discard the blocks of the page containing the physical word index if there are any */
+	public final void store (final int index) {
+		if (codePages[index >>> 10]) {
+			invalidate(index >>> 10);
+		}
+	}
+
+	private Block create (final int index) {
+		final int end = (index & ~(PAGE_WORDS - 1)) + PAGE_WORDS;
+		int i = index;
+		while (i < end) {
+			final int isn = ram.load(i++);
+			if (isBranch(isn)) {
+				// include the delay slot if it is on the same page
+				if (i < end) {
+					i++;
+				}
+				break;
+			} else if (isTerminal(isn)) {
+				break;
+			}
+		}
+		final int[] isns = new int[i - index];
+		ram.load(index, isns);
+		final Block b = new Block(index, isns);
+		final Hle hle = cpu.getHle();
+		if (hle != null) {
+			b.routine = hle.get(index);
+		}
+		blocks[index & (SIZE - 1)] = b;
+		codePages[index >>> 10] = true;
+		return b;
+	}
+
+	private void invalidate (final int page) {
+		// blocks on this page can only be in these slots
+		final int s = (page * PAGE_WORDS) & (SIZE - 1);
+		for (int n = s; n < s + PAGE_WORDS; n++) {
+			final Block b = blocks[n];
+			if (b != null && (b.index >>> 10) == page) {
+				blocks[n] = null;
+			}
+		}
+		codePages[page] = false;
+		cpu.resetBlock();
+		if (page == REFILL_PAGE) {
+			cpu.refillPageWritten();
+		}
+	}
+
+	/** instruction has a delay slot */
+	private static boolean isBranch (final int isn) {
+		switch (op(isn)) {
+			case OP_J:
+			case OP_JAL:
+			case OP_BEQ:
+			case OP_BNE:
+			case OP_BLEZ:
+			case OP_BGTZ:
+			case OP_BEQL:
+			case OP_BNEL:
+			case OP_BLEZL:
+			case OP_BGTZL:
+			case OP_REGIMM:
+				return true;
+			case OP_SPECIAL:
+				return fn(isn) == FN_JR || fn(isn) == FN_JALR;
+			case OP_COP1:
+				return rs(isn) == FP_RS_BC1;
+			default:
+				return false;
+		}
+	}
+
+	/** instruction changes control flow without a delay slot */
+	private static boolean isTerminal (final int isn) {
+		switch (op(isn)) {
+			case OP_SPECIAL:
+				return fn(isn) == FN_SYSCALL || fn(isn) == FN_BREAK;
+			case OP_COP0:
+				return rs(isn) >= CP_RS_CO;
+			default:
+				return false;
+		}
+	}
+
+}
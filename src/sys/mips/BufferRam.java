@@ -0,0 +1,120 @@
+package sys.mips;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ram outside the java heap, either a direct buffer or a file mapped into
+ * memory. the operating system only allocates the pages that are used, and
+ * the contents of a mapped file persist after the guest stops.
+ */
+public final class BufferRam implements Ram {
+
+	private final ByteBuffer buf;
+	private final int size;
+
+	/** create zeroed direct ram of the given size in words */
+	public BufferRam (final int size) {
+		this(ByteBuffer.allocateDirect(size * 4), size);
+	}
+
+	/**
+	 * map ram of the given size in words onto the file, creating it if
+	 * necessary. changes are written back to the file.
+	 */
+	public BufferRam (final Path path, final int size) throws IOException {
+		this(map(path, size), size);
+	}
+
+	private BufferRam (final ByteBuffer buf, final int size) {
+		// the words are in host order, so the byte order doesn't matter
+		// except for the file, where it should be the same on every host
+		this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+		this.size = size;
+	}
+
+	private static ByteBuffer map (final Path path, final int size) throws IOException {
+		try (FileChannel chan = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// the mapping stays valid after the channel is closed
+			return chan.map(FileChannel.MapMode.READ_WRITE, 0, size * 4L);
+		}
+	}
+
+	@Override
+	public int size () {
+		return size;
+	}
+
+	@Override
+	public final int load (final int i) {
+		return buf.getInt(i << 2);
+	}
+
+	@Override
+	public final void store (final int i, final int value) {
+		buf.putInt(i << 2, value);
+	}
+
+	@Override
+	public final void load (final int i, final int[] a) {
+		final ByteBuffer b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(i << 2);
+		b.asIntBuffer().get(a);
+	}
+
+	@Override
+	public final void store (final int i, final int[] a) {
+		final ByteBuffer b = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(i << 2);
+		b.asIntBuffer().put(a);
+	}
+
+	@Override
+	public final void copy (final int src, final int dst, final int len) {
+		if (dst <= src) {
+			for (int n = 0; n < len; n++) {
+				store(dst + n, load(src + n));
+			}
+		} else {
+			for (int n = len - 1; n >= 0; n--) {
+				store(dst + n, load(src + n));
+			}
+		}
+	}
+
+	@Override
+	public final void fill (final int i, final int len, final int value) {
+		for (int n = 0; n < len; n++) {
+			store(i + n, value);
+		}
+	}
+
+	/** true if the page isn't all zero */
+	@Override
+	public boolean isUsed (final int p) {
+		final int end = Math.min(size, (p + 1) * PAGE_WORDS);
+		for (int i = p * PAGE_WORDS; i < end; i++) {
+			if (load(i) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** create a direct copy of this ram */
+	@Override
+	public Ram fork () {
+		final ByteBuffer b = ByteBuffer.allocateDirect(size * 4);
+		b.put(buf.duplicate()).clear();
+		return new BufferRam(b, size);
+	}
+
+	@Override
+	public String toString () {
+		return "BufferRam[size=" + size + " direct=" + buf.isDirect() + "]";
+	}
+}
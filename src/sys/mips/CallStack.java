@@ -0,0 +1,145 @@
+package sys.mips;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import sys.util.Symbols;
+
+/**
+ * shadow call stack of the guest, pushed by linking jumps and branches and
+ * popped by jr ra. a return only pops if its address matches a frame, so
+ * longjmp and context switches don't empty the stack. exceptions push a frame
+ * that eret pops along with anything above it. counts calls and inclusive and
+ * exclusive cycles per function and per caller and callee. only used by the
+ * cpu thread.
+ */
+public final class CallStack {
+
+	private static final int MAX_DEPTH = 1024;
+
+	/** function address, return address and exception flag of each frame */
+	private final int[] funcs = new int[MAX_DEPTH], rets = new int[MAX_DEPTH];
+	private final boolean[] excs = new boolean[MAX_DEPTH];
+	/** cycle at entry and cycles spent in callees of each frame */
+	private final long[] entries = new long[MAX_DEPTH], children = new long[MAX_DEPTH];
+	/** calls, inclusive and exclusive cycles by function address */
+	private final Map<Integer, long[]> functions = new HashMap<>();
+	/** calls and inclusive cycles by caller and callee address */
+	private final Map<Long, long[]> edges = new HashMap<>();
+	private int depth;
+	/** calls not recorded because the stack was full */
+	private long overflows;
+
+	/** number of frames */
+	public int getDepth () {
+		return depth;
+	}
+
+	/** function address of frame n, 0 is the outermost */
+	public int getFunction (final int n) {
+		return funcs[n];
+	}
+
+	/** call to the function that returns to ret */
+	public void call (final int func, final int ret, final long cycle) {
+		push(func, ret, false, cycle);
+	}
+
+	/** jr ra to the address, pops to the frame that returns there if any */
+	public void ret (final int addr, final long cycle) {
+		for (int n = depth - 1; n >= 0 && !excs[n]; n--) {
+			if (rets[n] == addr) {
+				while (depth > n) {
+					pop(cycle);
+				}
+				return;
+			}
+		}
+	}
+
+	/** exception at the vector that returns to epc */
+	public void exception (final int vector, final int epc, final long cycle) {
+		push(vector, epc, true, cycle);
+	}
+
+	/** pop to and including the latest exception frame, if any */
+	public void eret (final long cycle) {
+		for (int n = depth - 1; n >= 0; n--) {
+			if (excs[n]) {
+				while (depth > n) {
+					pop(cycle);
+				}
+				return;
+			}
+		}
+	}
+
+	/** pop all frames, e.g. before printing */
+	public void unwind (final long cycle) {
+		while (depth > 0) {
+			pop(cycle);
+		}
+	}
+
+	private void push (final int func, final int ret, final boolean exc, final long cycle) {
+		if (depth < MAX_DEPTH) {
+			funcs[depth] = func;
+			rets[depth] = ret;
+			excs[depth] = exc;
+			entries[depth] = cycle;
+			children[depth] = 0;
+			depth++;
+		} else {
+			overflows++;
+		}
+	}
+
+	private void pop (final long cycle) {
+		depth--;
+		final int func = funcs[depth];
+		final long inc = cycle - entries[depth];
+		long[] f = functions.get(func);
+		if (f == null) {
+			functions.put(func, f = new long[3]);
+		}
+		f[0]++;
+		f[1] += inc;
+		f[2] += inc - children[depth];
+		if (depth > 0) {
+			children[depth - 1] += inc;
+			final long key = ((long) funcs[depth - 1] << 32) | (func & 0xffff_ffffL);
+			long[] e = edges.get(key);
+			if (e == null) {
+				edges.put(key, e = new long[2]);
+			}
+			e[0]++;
+			e[1] += inc;
+		}
+	}
+
+	/** print the n functions with the most inclusive cycles, and the n busiest edges */
+	public void print (final PrintStream ps, final Symbols symbols, final int n) {
+		final List<Map.Entry<Integer, long[]>> fl = new ArrayList<>(functions.entrySet());
+		fl.sort((x, y) -> Long.compare(y.getValue()[1], x.getValue()[1]));
+		ps.println(String.format("%10s %14s %14s  %s (overflows %d)", "calls", "inclusive", "exclusive", "function", overflows));
+		for (Map.Entry<Integer, long[]> e : fl.subList(0, Math.min(n, fl.size()))) {
+			final long[] v = e.getValue();
+			ps.println(String.format("%10d %14d %14d  %s", v[0], v[1], v[2], symbols.getName(e.getKey())));
+		}
+		ps.println();
+
+		final List<Map.Entry<Long, long[]>> el = new ArrayList<>(edges.entrySet());
+		el.sort((x, y) -> Long.compare(y.getValue()[1], x.getValue()[1]));
+		ps.println(String.format("%10s %14s  %s", "calls", "inclusive", "caller -> callee"));
+		for (Map.Entry<Long, long[]> e : el.subList(0, Math.min(n, el.size()))) {
+			final long[] v = e.getValue();
+			final long k = e.getKey();
+			ps.println(String.format("%10d %14d  %s -> %s", v[0], v[1], symbols.getName((int) (k >>> 32)), symbols.getName((int) k)));
+		}
+	}
+
+	@Override
+	public String toString () {
+		return "CallStack[depth=" + depth + " functions=" + functions.size() + " edges=" + edges.size() + "]";
+	}
+}
@@ -1,10 +1,13 @@
 package sys.mips;
 
 import java.beans.PropertyChangeSupport;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import sys.malta.MaltaUtil;
 import sys.util.Log;
@@ -22,6 +25,13 @@ public final class Cpu {
 	
 	private static final ThreadLocal<Cpu> instance = new ThreadLocal<>();
 	private static final Logger log = new Logger("Cpu");
+	private static final int[] NO_ISNS = new int[0];
+	/** number of times a block is entered before it is translated */
+	private static final int TRANSLATE_COUNT = 16;
+	/** size of the pending exception ring, must be a power of 2 */
+	private static final int RING_SIZE = 64;
+	/** nominal clock rate, for converting device time to cycles */
+	public static final long CLOCK_HZ = 100_000_000;
 	
 	/** allow other classes to access cpu */
 	public static Cpu getInstance() {
@@ -33,23 +43,61 @@ public final class Cpu {
 	/** coprocessor 0 registers (register+selection*32) */
 	private final int[] cpRegister = new int[64];
 	private final CpuStats stats = new CpuStats();
+	/** instructions executed by instruction set id, from stats */
+	private final long[] isnCounts = stats.isnCounts;
 	private final Memory memory;
 	private final boolean littleEndian;
-	/** pending exception queue, must be synchronised on this */
-	private final Deque<CpuExceptionParams> exceptions = new ArrayDeque<>();
+	/** asserted southbridge irq lines, set by any thread and cleared by the cpu thread */
+	private final AtomicInteger irqsPending = new AtomicInteger();
+	/** exception params for each southbridge irq */
+	private final CpuExceptionParams[] irqParams = new CpuExceptionParams[16];
+	/** parameters of synchronous address and tlb errors, reused */
+	private final CpuExceptionParams syncParams = new CpuExceptionParams(0);
+	/** the synchronous exception, reused */
+	private final CpuException syncException = new CpuException(syncParams);
+	/** parameters of syscall, break and trap, per cpu as the params are mutable */
+	private final CpuExceptionParams syscallParams = new CpuExceptionParams(EX_SYSCALL);
+	private final CpuExceptionParams breakpointParams = new CpuExceptionParams(EX_BREAKPOINT);
+	private final CpuExceptionParams trapParams = new CpuExceptionParams(EX_TRAP);
+	/** pending exceptions other than irqs, producers must synchronise on this */
+	private final CpuExceptionParams[] ring = new CpuExceptionParams[RING_SIZE];
 	/** 0 for little endian, 3 for big endian */
 	private final int wordAddrXor;
 	private final Fpu fpu = new Fpu(this);
 	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	/** device events in virtual time, only used by the cpu thread */
+	private final EventQueue events = new EventQueue(this::getCycle);
 	private final PropertyChangeSupport support = new PropertyChangeSupport(this);
 	/** pending logs queue, must be synchronised on this */
 	private final List<Log> logs = new ArrayList<>();
 	private final Symbols symbols = new Symbols();
 	
-	/** cycle count, used as value of CPR_COUNT */
-	private volatile long cycle;
+	/** cycle count, used as value of CPR_COUNT (only used by the cpu thread) */
+	private long cycle;
+	/** cycle at the last event check, for other threads */
+	private volatile long publishedCycle;
 	private volatile boolean logScheduled;
-	private volatile boolean exceptionPending;
+	/** index of next exception to take from ring, only written by the cpu thread */
+	private volatile int ringHead;
+	/** index of next exception to put in ring */
+	private volatile int ringTail;
+	/** thread blocked in wait instruction, if any */
+	private volatile Thread waiter;
+	/** don't let cycle get ahead of real time at the nominal clock rate */
+	private volatile boolean realTime;
+	/** cycle at the start of run, when the start time was taken */
+	private long startCycle;
+	/** skip to the next timer when waiting for interrupt */
+	private volatile boolean idleSkip = true;
+	/** high level emulation of kernel routines, null if disabled */
+	private Hle hle;
+	/** shadow call stack, null if disabled */
+	private CallStack calls;
+	/** walks the page tables for tlb refills, null to always run the guest handler */
+	private TlbRefill tlbRefill;
+	private final int[] entryLo = new int[2];
+	/** set by the cycle limit event to make run return */
+	private boolean stopped;
 	
 	/**
 	 * within execOp: address of current instruction. if pc2 != pc + 4 then the
@@ -68,9 +116,27 @@ public final class Cpu {
 	
 	/** derived from CPR_COMPARE */
 	private long compare;
+	/**
+	 * there might be an exception queued, only refreshed at block boundaries so
+	 * the run loop doesn't have to read any volatile fields
+	 */
+	private boolean exceptionPending;
+	
+	/** the current block, null if there isn't one */
+	private Block block;
+	/** instructions of the current block, empty if there isn't one */
+	private int[] blockIsns = NO_ISNS;
+	/** instruction set ids of the current block */
+	private int[] blockIds = NO_ISNS;
+	/** virtual address of the current block */
+	private int blockAddr;
 	
 	public Cpu (int memsize, boolean littleEndian) {
-		this.memory = new Memory(this, memsize, littleEndian);
+		this(new HeapRam(memsize >>> 2), littleEndian);
+	}
+	
+	public Cpu (Ram ram, boolean littleEndian) {
+		this.memory = new Memory(this, ram, littleEndian);
 		this.littleEndian = littleEndian;
 		this.wordAddrXor = littleEndian ? 0 : 3;
 		
@@ -99,6 +165,10 @@ public final class Cpu {
 		cpRegister[CPR_COMPARE] = -1;
 		compare = -1;
 		
+		for (int n = 0; n < irqParams.length; n++) {
+			irqParams[n] = new CpuExceptionParams(EX_INTERRUPT, MaltaUtil.INT_SOUTHBRIDGE, n);
+		}
+		
 		// entry point should be set by elf loader
 		//setPc(EXV_RESET);
 	}
@@ -123,10 +193,16 @@ public final class Cpu {
 		c.set(cpRegister, b ? 1 : 0);
 	}
 	
+	/** cycle count, only exact on the cpu thread or after run has returned */
 	public final long getCycle () {
 		return cycle;
 	}
 	
+	/** cycle at the last event check, may be read by any thread */
+	public final long getPublishedCycle () {
+		return publishedCycle;
+	}
+	
 	public final Memory getMemory () {
 		return memory;
 	}
@@ -184,6 +260,87 @@ public final class Cpu {
 		return executor;
 	}
 	
+	public final EventQueue getEventQueue () {
+		return events;
+	}
+	
+	public final boolean isRealTime () {
+		return realTime;
+	}
+	
+	public final void setRealTime (boolean realTime) {
+		this.realTime = realTime;
+	}
+	
+	public final boolean isIdleSkip () {
+		return idleSkip;
+	}
+	
+	public final void setIdleSkip (boolean idleSkip) {
+		this.idleSkip = idleSkip;
+	}
+	
+	public final Hle getHle () {
+		return hle;
+	}
+	
+	/**
+	 * enable high level emulation of the kernel routines named in the symbols,
+	 * must be called after loading the symbols and before run
+	 */
+	public final void setHle (boolean enable) {
+		hle = enable ? new Hle(this) : null;
+	}
+	
+	public final CallStack getCallStack () {
+		return calls;
+	}
+	
+	/** enable or disable the shadow call stack */
+	public final void setCallStack (boolean enable) {
+		calls = enable ? new CallStack() : null;
+	}
+	
+	public final boolean isNativeRefill () {
+		return tlbRefill != null;
+	}
+	
+	/** handle tlb refills in java instead of running the guest handler where possible */
+	public final void setNativeRefill (boolean enable) {
+		tlbRefill = enable ? new TlbRefill(memory.getRam()) : null;
+	}
+	
+	/** the blocks of the page of the refill vector have been discarded */
+	final void refillPageWritten () {
+		if (tlbRefill != null) {
+			tlbRefill.invalidate();
+		}
+	}
+	
+	/** add cycles for work done without running instructions, stopping at the compare */
+	final void skipCycles (long n) {
+		if (compare >= cycle && compare - cycle < n) {
+			n = compare - cycle;
+		}
+		cycle += n;
+	}
+	
+	/**
+	 * make run return at the first event check after the given number of
+	 * cycles from now, must be called before run
+	 */
+	public final void setCycleBudget (long cycles) {
+		events.add(Math.max(0, Math.min(cycles, Long.MAX_VALUE - cycle)), () -> stopped = true);
+	}
+	
+	/**
+	 * make run return before the next instruction, must be called from the cpu
+	 * thread, e.g. by an event or a console listener
+	 */
+	public final void stop () {
+		events.add(0, () -> stopped = true);
+	}
+	
 	public final PropertyChangeSupport getSupport () {
 		return support;
 	}
@@ -222,12 +379,14 @@ public final class Cpu {
 		}
 	}
 	
-	/** never returns, throws runtime exception... */
+	/** only returns if the cycle limit is reached, otherwise throws runtime exception... */
 	public final void run () {
 		stats.startTimeNs = System.nanoTime();
+		startCycle = cycle;
 		
 		try {
 			instance.set(this);
+			stopped = false;
 			log.println("run");
 			// this should only be checked during call
 			//			int f = memory.getSymbols().getAddr("size_fifo");
@@ -244,6 +403,11 @@ public final class Cpu {
 				
 				//final boolean printCall = calls.isPrintAfterNext();
 				
+				if (pc2 != pc + 4) {
+					// jumping, so start a new block at the target
+					resetBlock();
+				}
+				
 				// set up pc before handling exception
 				pc = pc2;
 				pc2 = pc3;
@@ -260,13 +424,23 @@ public final class Cpu {
 				//					log.println(memory.getSymbols().getNameOffset(pc));
 				//				}
 				
+				if (cycle >= events.next()) {
+					execEvents();
+					if (stopped) {
+						// put pc back so the instruction is executed if run again
+						pc3 = pc2;
+						pc2 = pc;
+						break;
+					}
+				}
+				
 				// set up cycle before exception
 				// don't set CPR_CAUSE twice...
 				//				final int cmp = cpRegister[CPR_COMPARE];
 				//				final int count = (int) (cycle >>> 1);
 				if (cycle++ == compare) {
 					// IP7, hardware interrupt 5 (timer)
-					log.println("compare hit");
+					log.println(Logger.DEBUG, "compare hit");
 					setCpValue(CPR_CAUSE_IP, 1 << MaltaUtil.INT_R4KTIMER);
 					// XXX should add 2^32 to compare...
 					if (interruptsEnabled) {
@@ -281,7 +455,28 @@ public final class Cpu {
 				
 				try {
 					// this might cause tlb miss...
-					final int isn = memory.loadWord(pc);
+					final int isn = fetch();
+					
+					if (pc == blockAddr) {
+						// start of block (or not in ram), check for exceptions from other threads
+						exceptionPending = isExceptionQueued();
+						if (block != null) {
+							final Hle.Routine r = block.routine;
+							if (r != null && pc2 == pc + 4 && r.exec()) {
+								continue;
+							}
+							final Op[] ops = block.ops;
+							if (ops != null) {
+								// can't run the whole block if in a delay slot or the compare is due
+								if (pc2 == pc + 4 && (compare < cycle || compare - cycle >= ops.length)) {
+									execBlock(ops);
+									continue;
+								}
+							} else if (++block.count == TRANSLATE_COUNT) {
+								block.ops = translate(block.isns);
+							}
+						}
+					}
 					
 					/*
 					if (disasmCount > 0) {
@@ -304,14 +499,10 @@ public final class Cpu {
 					execOp(isn);
 					
 				} catch (CpuException e) {
-					log.println("caught " + e);
+					log.println(Logger.DEBUG, () -> "caught " + e);
 					execException(e.ep);
 				}
 				
-				//if (countIsns) {
-				//	isnCount.get(IsnSet.getInstance().getIsn(isn).name)[0]++;
-				//}
-				
 				//if (singleStep) {
 				//	while (System.in.read() != 10) {
 				//		//
@@ -333,32 +524,316 @@ public final class Cpu {
 			
 		} finally {
 			stats.endTimeNs = System.nanoTime();
+			publishedCycle = cycle;
 			log.println("ended");
 			log.println("run time: " + stats.durationS());
-			log.println("waits: " + stats.waitCount + " wait time: " + stats.waitTimeNs);
+			log.println("waits: " + stats.waitCount + " wait time: " + stats.waitTimeNs + " idle cycles: " + stats.idleCycles);
 			log.println("total time: " + stats.totalS());
-			log.println("nanoseconds per isn: " + (stats.durationNs() / cycle));
+			log.println("nanoseconds per isn: " + (stats.durationNs() / Math.max(1, cycle - stats.idleCycles)));
 			log.println("exceptions: " + stats.exceptionsString());
 			log.println("interrupts: " + stats.interruptsString());
 			log.println("irqs: " + stats.irqsString());
 			log.println("isns by pop: " + stats.instructionsByPop());
+			log.println("translated blocks: " + stats.translations);
+			log.println("tlb hits: " + stats.tlbHits + " misses: " + stats.tlbMisses + " native refills: " + stats.nativeRefills);
+			if (hle != null) {
+				log.println("hle calls: " + stats.hleCalls + " fallbacks: " + stats.hleFallbacks + " " + hle);
+			}
 			instance.remove();
 			executor.shutdown();
 			fireLogs();
 		}
 	}
 	
+	/** 
+	 * get the instruction at pc from the current block, or load the block
+	 * starting at pc if pc is outside it
+	 */
+	private final int fetch () {
+		final int d = pc - blockAddr;
+		if ((d >>> 2) < blockIsns.length && (d & 3) == 0) {
+			isnCounts[blockIds[d >>> 2]]++;
+			return blockIsns[d >>> 2];
+		}
+		final Block b = memory.loadBlock(pc);
+		if (b != null) {
+			block = b;
+			blockIsns = b.isns;
+			blockIds = b.ids;
+			blockAddr = pc;
+			isnCounts[blockIds[0]]++;
+			return blockIsns[0];
+		} else {
+			// not in ram, can't be cached
+			resetBlock();
+			blockAddr = pc;
+			final int isn = memory.loadWord(pc);
+			isnCounts[InstructionSet.getInstance().getId(isn)]++;
+			return isn;
+		}
+	}
+	
+	/** 
+	 * discard the current block, e.g. if it has been modified or the address
+	 * translation has changed
+	 */
+	final void resetBlock () {
+		block = null;
+		blockIsns = NO_ISNS;
+	}
+	
+	/**
+	 * execute a translated block. the first instruction has already been set
+	 * up and counted. stops early if the block is discarded. the cycle is
+	 * counted before each instruction as in the run loop, so the call stack
+	 * and exceptions see the right cycle.
+	 */
+	private void execBlock (final Op[] ops) {
+		final int[] ids = blockIds;
+		final long[] isnCounts = this.isnCounts;
+		ops[0].exec();
+		for (int k = 1; k < ops.length && blockIsns != NO_ISNS; k++) {
+			pc = pc2;
+			pc2 = pc3;
+			pc3 += 4;
+			cycle++;
+			isnCounts[ids[k]]++;
+			ops[k].exec();
+		}
+	}
+	
+	private Op[] translate (final int[] isns) {
+		final Op[] ops = new Op[isns.length];
+		for (int n = 0; n < isns.length; n++) {
+			ops[n] = translate(isns[n]);
+		}
+		stats.translations++;
+		return ops;
+	}
+	
+	/**
+	 * translate instruction with decoded operands. must not write register 0.
+	 * the less common instructions fall back to execOp.
+	 */
+	private Op translate (final int isn) {
+		final int[] register = this.register;
+		final Memory memory = this.memory;
+		final int rs = rs(isn);
+		final int rt = rt(isn);
+		final int simm = simm(isn);
+		final int imm = imm(isn);
+		
+		switch (op(isn)) {
+			case OP_SPECIAL:
+				return translateFunction(isn);
+			case OP_REGIMM:
+				switch (rt) {
+					case RT_BGEZ:
+						return () -> {
+							if (register[rs] >= 0) {
+								execBranch(isn);
+							}
+						};
+					case RT_BLTZ:
+						return () -> {
+							if (register[rs] < 0) {
+								execBranch(isn);
+							}
+						};
+					default:
+						return translateExec(isn);
+				}
+			case OP_J:
+				return () -> execJump(isn);
+			case OP_JAL:
+				return () -> {
+					execLink();
+					execJump(isn);
+					call();
+				};
+			case OP_BEQ:
+				return () -> {
+					if (register[rs] == register[rt]) {
+						execBranch(isn);
+					}
+				};
+			case OP_BNE:
+				return () -> {
+					if (register[rs] != register[rt]) {
+						execBranch(isn);
+					}
+				};
+			case OP_BLEZ:
+				return () -> {
+					if (register[rs] <= 0) {
+						execBranch(isn);
+					}
+				};
+			case OP_BGTZ:
+				return () -> {
+					if (register[rs] > 0) {
+						execBranch(isn);
+					}
+				};
+			case OP_SW:
+				return () -> memory.storeWord(register[rs] + simm, register[rt]);
+			case OP_SH:
+				return () -> memory.storeHalfWord(register[rs] + simm, (short) register[rt]);
+			case OP_SB:
+				return () -> memory.storeByte(register[rs] + simm, (byte) register[rt]);
+			default:
+				if (rt == 0) {
+					// loads still need to happen
+					return translateExec(isn);
+				}
+		}
+		
+		// the rest write rt
+		switch (op(isn)) {
+			case OP_ADDIU:
+				return () -> register[rt] = register[rs] + simm;
+			case OP_ANDI:
+				return () -> register[rt] = register[rs] & imm;
+			case OP_ORI:
+				return () -> register[rt] = register[rs] | imm;
+			case OP_XORI:
+				return () -> register[rt] = register[rs] ^ imm;
+			case OP_LUI: {
+				final int value = simm << 16;
+				return () -> register[rt] = value;
+			}
+			case OP_SLTI:
+				return () -> register[rt] = register[rs] < simm ? 1 : 0;
+			case OP_SLTIU:
+				return () -> register[rt] = Integer.compareUnsigned(register[rs], simm) < 0 ? 1 : 0;
+			case OP_LW:
+				return () -> register[rt] = memory.loadWord(register[rs] + simm);
+			case OP_LB:
+				return () -> register[rt] = memory.loadByte(register[rs] + simm);
+			case OP_LBU:
+				return () -> register[rt] = memory.loadByte(register[rs] + simm) & 0xff;
+			case OP_LH:
+				return () -> register[rt] = memory.loadHalfWord(register[rs] + simm);
+			case OP_LHU:
+				return () -> register[rt] = Short.toUnsignedInt(memory.loadHalfWord(register[rs] + simm));
+			default:
+				return translateExec(isn);
+		}
+	}
+	
+	private Op translateFunction (final int isn) {
+		final int[] register = this.register;
+		final int rs = rs(isn);
+		final int rt = rt(isn);
+		final int rd = rd(isn);
+		final int sa = sa(isn);
+		
+		switch (fn(isn)) {
+			case FN_JR:
+				if (rs == 31) {
+					return () -> {
+						pc3 = register[31];
+						ret();
+					};
+				} else {
+					return () -> pc3 = register[rs];
+				}
+			case FN_SYNC:
+				return () -> {};
+			case FN_MTHI:
+				return () -> register[REG_HI] = register[rs];
+			case FN_MTLO:
+				return () -> register[REG_LO] = register[rs];
+			default:
+				if (rd == 0) {
+					return translateExec(isn);
+				}
+		}
+		
+		// the rest write rd
+		switch (fn(isn)) {
+			case FN_SLL:
+				return () -> register[rd] = register[rt] << sa;
+			case FN_SRL:
+				return () -> register[rd] = register[rt] >>> sa;
+			case FN_SRA:
+				return () -> register[rd] = register[rt] >> sa;
+			case FN_SLLV:
+				return () -> register[rd] = register[rt] << (register[rs] & 0x1f);
+			case FN_SRLV:
+				return () -> register[rd] = register[rt] >>> (register[rs] & 0x1f);
+			case FN_SRAV:
+				return () -> register[rd] = register[rt] >> (register[rs] & 0x1f);
+			case FN_MOVZ:
+				return () -> {
+					if (register[rt] == 0) {
+						register[rd] = register[rs];
+					}
+				};
+			case FN_MOVN:
+				return () -> {
+					if (register[rt] != 0) {
+						register[rd] = register[rs];
+					}
+				};
+			case FN_MFHI:
+				return () -> register[rd] = register[REG_HI];
+			case FN_MFLO:
+				return () -> register[rd] = register[REG_LO];
+			case FN_ADDU:
+				return () -> register[rd] = register[rs] + register[rt];
+			case FN_SUBU:
+				return () -> register[rd] = register[rs] - register[rt];
+			case FN_AND:
+				return () -> register[rd] = register[rs] & register[rt];
+			case FN_OR:
+				return () -> register[rd] = register[rs] | register[rt];
+			case FN_XOR:
+				return () -> register[rd] = register[rs] ^ register[rt];
+			case FN_NOR:
+				return () -> register[rd] = ~(register[rs] | register[rt]);
+			case FN_SLT:
+				return () -> register[rd] = register[rs] < register[rt] ? 1 : 0;
+			case FN_SLTU:
+				return () -> register[rd] = Integer.compareUnsigned(register[rs], register[rt]) < 0 ? 1 : 0;
+			default:
+				return translateExec(isn);
+		}
+	}
+	
+	/** translate instruction by calling the interpreter */
+	private Op translateExec (final int isn) {
+		final int[] register = this.register;
+		return () -> {
+			execOp(isn);
+			register[0] = 0;
+		};
+	}
+	
+	/** run the device events that are due, waiting for real time to catch up if necessary */
+	private void execEvents () {
+		if (realTime) {
+			final long ns = stats.startTimeNs + (long) ((cycle - startCycle) * ((double) CpuUtil.NS_IN_S / CLOCK_HZ)) - System.nanoTime();
+			if (ns > 0) {
+				try {
+					Thread.sleep(ns / 1_000_000, (int) (ns % 1_000_000));
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+		events.poll(cycle);
+		publishedCycle = cycle;
+	}
+	
 	/** exec exception if there is one */
 	private boolean checkException () {
 		if (interruptsEnabled) {
 			//			if (execException) {
 			//				throw new RuntimeException();
 			//			}
-			CpuExceptionParams ep;
-			synchronized (this) {
-				ep = exceptions.poll();
-				exceptionPending = false;
-			}
+			final CpuExceptionParams ep = pollException();
+			exceptionPending = isExceptionQueued();
 			if (ep != null) {
 				execException(ep);
 				return true;
@@ -367,13 +842,153 @@ public final class Cpu {
 		return false;
 	}
 	
+	/**
+	 * get the synchronous exception with the given parameters. there is only
+	 * one, so it must be thrown straight away.
+	 */
+	final CpuException exception (final int excode, final int vaddr, final boolean refill) {
+		syncParams.set(excode, vaddr, refill);
+		return syncException;
+	}
+	
+	/** true if there is an exception in the ring or an irq asserted */
+	private boolean isExceptionQueued () {
+		return ringHead != ringTail || irqsPending.get() != 0;
+	}
+	
+	/**
+	 * write registers, pending exceptions, the tlb and the devices to a
+	 * snapshot (but not the ram). the cpu must not be running.
+	 */
+	public final void saveState (final DataOutput out) throws IOException {
+		for (int n = 0; n < register.length; n++) {
+			out.writeInt(register[n]);
+		}
+		for (int n = 0; n < cpRegister.length; n++) {
+			out.writeInt(cpRegister[n]);
+		}
+		out.writeLong(cycle);
+		out.writeLong(compare);
+		out.writeInt(pc2);
+		out.writeInt(pc3);
+		out.writeInt(irqsPending.get());
+		synchronized (ring) {
+			out.writeInt(ringTail - ringHead);
+			for (int n = ringHead; n != ringTail; n++) {
+				final CpuExceptionParams ep = ring[n & (RING_SIZE - 1)];
+				out.writeInt(ep.excode);
+				out.writeInt(ep.interrupt);
+				out.writeInt(ep.irq);
+			}
+		}
+		fpu.saveState(out);
+		memory.saveState(out);
+	}
+	
+	/**
+	 * create a copy of this cpu with its own registers, tlb and devices, that
+	 * shares the ram pages with this cpu until they are written to. the cpu
+	 * must not be running.
+	 */
+	public final Cpu fork () {
+		try {
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bos)) {
+				symbols.save(out);
+				saveState(out);
+			}
+			final Cpu cpu = new Cpu(memory.getRam().fork(), littleEndian);
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+				cpu.symbols.load(in);
+				cpu.loadState(in);
+			}
+			cpu.setHle(hle != null);
+			cpu.setNativeRefill(tlbRefill != null);
+			cpu.setCallStack(calls != null);
+			return cpu;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** read the state written by saveState, the cpu must not be running */
+	public final void loadState (final DataInput in) throws IOException {
+		for (int n = 0; n < register.length; n++) {
+			register[n] = in.readInt();
+		}
+		for (int n = 0; n < cpRegister.length; n++) {
+			cpRegister[n] = in.readInt();
+		}
+		statusUpdated();
+		// set by exceptions and cleared by eret along with exl
+		execException = getCpValueBoolean(CPR_STATUS_EXL);
+		// devices reschedule their events relative to this
+		cycle = in.readLong();
+		publishedCycle = cycle;
+		compare = in.readLong();
+		pc2 = in.readInt();
+		pc3 = in.readInt();
+		irqsPending.set(in.readInt());
+		final int count = in.readInt();
+		for (int n = 0; n < count; n++) {
+			final CpuExceptionParams ep = new CpuExceptionParams(in.readInt());
+			ep.interrupt = in.readInt();
+			ep.irq = in.readInt();
+			addException(ep);
+		}
+		exceptionPending = isExceptionQueued();
+		fpu.loadState(in);
+		memory.loadState(in);
+		resetBlock();
+	}
+	
+	/** take the next exception from the ring, or else the lowest asserted irq, or null */
+	private CpuExceptionParams pollException () {
+		final int h = ringHead;
+		if (h != ringTail) {
+			final int i = h & (RING_SIZE - 1);
+			final CpuExceptionParams ep = ring[i];
+			ring[i] = null;
+			ringHead = h + 1;
+			return ep;
+		}
+		int m;
+		while ((m = irqsPending.get()) != 0) {
+			final int irq = Integer.numberOfTrailingZeros(m);
+			if (irqsPending.compareAndSet(m, m & ~(1 << irq))) {
+				return irqParams[irq];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * queue exception from any thread. southbridge interrupts just assert the
+	 * irq line, so repeated interrupts are merged until the first is taken.
+	 */
+	/** the exception params of the southbridge irq, shared by the devices */
+	public final CpuExceptionParams getIrqParams (final int irq) {
+		return irqParams[irq];
+	}
+	
 	public final void addException (final CpuExceptionParams ep) {
 		//log.println("add exn " + ep);
-		synchronized (this) {
-			exceptions.add(ep);
-			exceptionPending = true;
-			// wake up if cpu currently sleeping
-			notifyAll();
+		if (ep.excode == EX_INTERRUPT && ep.irq >= 0 && ep.interrupt == MaltaUtil.INT_SOUTHBRIDGE) {
+			irqsPending.accumulateAndGet(1 << ep.irq, (x, y) -> x | y);
+		} else {
+			synchronized (ring) {
+				final int t = ringTail;
+				if (t - ringHead == RING_SIZE) {
+					throw new RuntimeException("exception queue full");
+				}
+				ring[t & (RING_SIZE - 1)] = ep;
+				ringTail = t + 1;
+			}
+		}
+		// wake up if cpu currently sleeping
+		final Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
 		}
 	}
 	
@@ -385,17 +1000,22 @@ public final class Cpu {
 	// genex.S
 	// malta-int.c plat_irq_dispatch (deals with hardware interrupts)
 	private final void execException (CpuExceptionParams ep) {
-		log.println("exec exception " + ep);
+		log.println(Logger.DEBUG, () -> "exec exception " + ep);
 		//		log.println(CpuUtil.gpRegString(this, null));
 		//		log.println(IsnUtil.isnString(this, memory.loadWord(pc)));
 		
+		if (ep.tlbRefill && tlbRefill != null && nativeRefill(ep.vaddr)) {
+			return;
+		}
+		
 		execException = true;
+		resetBlock();
 		stats.exceptions[ep.excode]++;
-		if (ep.interrupt != null) {
-			stats.interrupts[ep.interrupt.intValue()]++;
+		if (ep.interrupt >= 0) {
+			stats.interrupts[ep.interrupt]++;
 		}
-		if (ep.irq != null) {
-			stats.irqs[ep.irq.intValue()]++;
+		if (ep.irq >= 0) {
+			stats.irqs[ep.irq]++;
 		}
 		
 		if (getCpValueBoolean(CPR_STATUS_BEV)) {
@@ -418,11 +1038,11 @@ public final class Cpu {
 		switch (ep.excode) {
 			case EX_INTERRUPT:
 				isInterruptException = true;
-				pendingMask = 1 << ep.interrupt.intValue();
+				pendingMask = 1 << ep.interrupt;
 				if ((getCpValue(CPR_STATUS_IM) & pendingMask) == 0) {
 					throw new RuntimeException("masked interrupt " + ep.interrupt);
 				}
-				switch (ep.interrupt.intValue()) {
+				switch (ep.interrupt) {
 					case MaltaUtil.INT_SOUTHBRIDGE:
 						isSouthbridgeInterrupt = true;
 						break;
@@ -451,8 +1071,8 @@ public final class Cpu {
 		setCpValue(CPR_EPC_VALUE, isDelaySlot ? pc - 4 : pc);
 		
 		if (isTlbException) {
-			final int vpn2 = vpn2(ep.vaddr.intValue());
-			setCpValue(CPR_BADVADDR_BADVADDR, ep.vaddr.intValue());
+			final int vpn2 = vpn2(ep.vaddr);
+			setCpValue(CPR_BADVADDR_BADVADDR, ep.vaddr);
 			setCpValue(CPR_CONTEXT_BADVPN2, vpn2);
 			setCpValue(CPR_ENTRYHI_VPN2, vpn2);
 		}
@@ -464,10 +1084,10 @@ public final class Cpu {
 		if (isSouthbridgeInterrupt) {
 			// uh....
 			// XXX pretty certain the P4 should be doing this
-			memory.getMalta().setIrq(ep.irq.intValue());
+			memory.getMalta().setIrq(ep.irq);
 		}
 		
-		if (isTlbException && ep.tlbRefill.booleanValue()) {
+		if (isTlbException && ep.tlbRefill) {
 			//log.println("jump to tlb refill vector");
 			setPc(EXV_TLBREFILL);
 			
@@ -480,19 +1100,51 @@ public final class Cpu {
 			setPc(EXV_EXCEPTION);
 		}
 		
-		call(pc);
+		if (calls != null) {
+			calls.exception(pc2, cpRegister[CPR_EPC], cycle);
+		}
 	}
 	
-	private void call (int a) {
-		// XXX print out the call...
+	/**
+	 * do what the guest refill handler would and restart the instruction,
+	 * false if the exception should be taken as usual
+	 */
+	private boolean nativeRefill (final int vaddr) {
+		// a refill at exl or erl goes to the general exception vector.
+		// linux keeps the cpu number in ptebase, only uniprocessor is supported
+		if (getCpValueBoolean(CPR_STATUS_EXL) || getCpValueBoolean(CPR_STATUS_ERL) || getCpValueBoolean(CPR_STATUS_BEV) || getCpValue(CPR_CONTEXT_PTEBASE) != 0 || !tlbRefill.walk(vaddr, entryLo)) {
+			return false;
+		}
+		final int vpn2 = vpn2(vaddr);
+		setCpValue(CPR_BADVADDR_BADVADDR, vaddr);
+		setCpValue(CPR_CONTEXT_BADVPN2, vpn2);
+		setCpValue(CPR_ENTRYHI_VPN2, vpn2);
+		cpRegister[CPR_ENTRYLO0] = entryLo[0] & 0x7fff_ffff;
+		cpRegister[CPR_ENTRYLO1] = entryLo[1] & 0x7fff_ffff;
+		updateEntry(random());
+		stats.nativeRefills++;
+		// as if the handler returned to epc
+		setPc(pc2 != pc + 4 ? pc - 4 : pc);
+		register[REG_LLBIT] = 0;
+		return true;
 	}
 	
+	/** linking jump or branch to pc3 taken */
+	private void call () {
+		if (calls != null) {
+			calls.call(pc3, pc2 + 4, cycle);
+		}
+	}
+	
+	/** jr ra to pc3 */
 	private void ret () {
-		// print out the return value?
-		// after the delay slot...
+		if (calls != null) {
+			calls.ret(pc3, cycle);
+		}
 	}
 	
-	private final void execOp (final int isn) {
+	/** execute one instruction at pc, package private for the benchmarks */
+	final void execOp (final int isn) {
 		final int[] register = this.register;
 		final int op = op(isn);
 		final int rs = rs(isn);
@@ -548,6 +1200,7 @@ public final class Cpu {
 			case OP_JAL:
 				execLink();
 				execJump(isn);
+				call();
 				return;
 			case OP_BLEZ:
 				if (register[rs] <= 0) {
@@ -614,7 +1267,7 @@ public final class Cpu {
 					register[rt] = 1;
 					stats.scSuccess++;
 				} else {
-					log.println("store conditional word failed: va=" + Integer.toHexString(va));
+					log.println(Logger.DEBUG, () -> "store conditional word failed: va=" + Integer.toHexString(va));
 					register[rt] = 0;
 					stats.scFail++;
 				}
@@ -728,13 +1381,11 @@ public final class Cpu {
 	/** update pc3 with jump */
 	private final void execJump (final int isn) {
 		pc3 = jump(isn, pc2);
-		call(pc3);
 	}
 	
 	/** update pc3 with branch */
 	public final void execBranch (final int isn) {
 		pc3 = branch(isn, pc2);
-		call(pc3);
 	}
 	
 	private final void execLink () {
@@ -744,22 +1395,27 @@ public final class Cpu {
 	private final void execRegImm (final int isn) {
 		final int rs = rs(isn);
 		final int rt = rt(isn);
-		boolean link = false;
 		
 		switch (rt) {
 			case RT_BGEZAL:
-				link = true;
 				execLink();
-				//$FALL-THROUGH$
+				if (register[rs] >= 0) {
+					execBranch(isn);
+					call();
+				}
+				return;
 			case RT_BGEZ:
 				if (register[rs] >= 0) {
 					execBranch(isn);
 				}
 				return;
 			case RT_BLTZAL:
-				link = true;
 				execLink();
-				//$FALL-THROUGH$
+				if (register[rs] < 0) {
+					execBranch(isn);
+					call();
+				}
+				return;
 			case RT_BLTZ:
 				if (register[rs] < 0) {
 					execBranch(isn);
@@ -807,7 +1463,7 @@ public final class Cpu {
 		case FN_JALR:
 			register[rd] = pc3;
 			pc3 = register[rs];
-			call(pc3);
+			call();
 			return;
 		case FN_MOVZ:
 			if (register[rt] == 0) {
@@ -822,10 +1478,10 @@ public final class Cpu {
 		case FN_SYSCALL:
 			// won't this try to re-execute the syscall?
 			// unless linux is smart enough to add 4 to the return address...
-			execException(new CpuExceptionParams(EX_SYSCALL));
+			execException(syscallParams);
 			return;
 		case FN_BREAK:
-			execException(new CpuExceptionParams(EX_BREAKPOINT));
+			execException(breakpointParams);
 			return;
 		case FN_SYNC:
 			// no-op
@@ -906,7 +1562,7 @@ public final class Cpu {
 			return;
 		case FN_TNE:
 			if (register[rs] != register[rt]) {
-				execException(new CpuExceptionParams(EX_TRAP));
+				execException(trapParams);
 			}
 			return;
 		default:
@@ -984,6 +1640,8 @@ public final class Cpu {
 			case CPR_EPC:
 			case CPR_BADVADDR:
 			case CPR_CONTEXT:
+			case CPR_PAGEMASK:
+			case CPR_INDEX:
 				break;
 			case CPR_COUNT:
 				// update this only when read
@@ -1021,7 +1679,7 @@ public final class Cpu {
 				memory.setAsid(getCpValue(CPR_ENTRYHI_ASID));
 				return;
 			case CPR_PAGEMASK:
-				cpRegister[cpr] = newValue & 0x00ff_f000;
+				cpRegister[cpr] = newValue & 0x01ff_e000;
 				return;
 			case CPR_CONTEXT:
 			case CPR_WIRED:
@@ -1043,7 +1701,7 @@ public final class Cpu {
 			case CPR_COMPARE:
 				cpRegister[cpr] = newValue;
 				compare = (newValue&ZX_INT_MASK) << 1;
-				log.println("set compare " + newValue + " (cycles to go: " + (compare - cycle) + ")");
+				log.println(Logger.DEBUG, () -> "set compare " + newValue + " (cycles to go: " + (compare - cycle) + ")");
 				return;
 			case CPR_EPC:
 				cpRegister[cpr] = newValue;
@@ -1121,26 +1779,7 @@ public final class Cpu {
 				return;
 			}
 			case CP_FN_WAIT:
-				// no idea...
-				synchronized (this) {
-					while (exceptions.size() == 0) {
-						try {
-							log.println("waiting...");
-							stats.waitCount++;
-							long t = System.nanoTime();
-							wait();
-							t = System.nanoTime() - t;
-							stats.waitTimeNs += t;
-							if (stats.waitCount > 10) {
-								throw new RuntimeException("wait count exceeded");
-							}
-							log.println("continuing after " + ((t*1.0)/CpuUtil.NS_IN_S) + " seconds");
-						} catch (InterruptedException e) {
-							throw new RuntimeException(e);
-							//							log.println("interrupted in wait...");
-						}
-					}
-				}
+				execWait();
 				return;
 			case CP_FN_ERET: {
 				final int epc = cpRegister[CPR_EPC];
@@ -1154,8 +1793,9 @@ public final class Cpu {
 				register[REG_LLBIT] = 0;
 				execException = false;
 				statusUpdated();
-				synchronized (this) {
-					exceptionPending = exceptions.size() > 0;
+				exceptionPending = isExceptionQueued();
+				if (calls != null) {
+					calls.eret(cycle);
 				}
 				return;
 			}
@@ -1164,9 +1804,50 @@ public final class Cpu {
 		}
 	}
 	
+	/**
+	 * wait for interrupt. if there is a timer pending, either skip straight to
+	 * it (if idle skip is enabled) or return and let the idle loop run until it
+	 * fires. otherwise block until another thread adds an exception.
+	 */
+	private void execWait () {
+		long t = events.next();
+		if (compare > cycle && compare < t) {
+			t = compare;
+		}
+		
+		if (t != Long.MAX_VALUE) {
+			if (idleSkip && interruptsEnabled && !isExceptionQueued()) {
+				stats.waitCount++;
+				stats.idleCycles += t - cycle;
+				cycle = t;
+			}
+			return;
+		}
+		
+		waiter = Thread.currentThread();
+		try {
+			while (!isExceptionQueued()) {
+				log.println("waiting...");
+				stats.waitCount++;
+				long w = System.nanoTime();
+				LockSupport.park(this);
+				w = System.nanoTime() - w;
+				stats.waitTimeNs += w;
+				if (Thread.interrupted()) {
+					throw new RuntimeException("interrupted in wait");
+				}
+				log.println("continuing after " + ((w*1.0)/CpuUtil.NS_IN_S) + " seconds");
+			}
+		} finally {
+			waiter = null;
+		}
+		exceptionPending = true;
+	}
+	
 	private void updateEntry (final int i) {
-		log.println("update entry " + i + " in " + symbols.getNameAddrOffset(pc));
+		log.println(Logger.DEBUG, () -> "update entry " + i + " in " + symbols.getNameAddrOffset(pc));
 		
+		memory.invalidateTlb(i);
 		final Entry e = memory.getEntry(i);
 		e.pageMask = getCpValue(CPR_PAGEMASK_MASK);
 		e.virtualPageNumber2 = getCpValue(CPR_ENTRYHI_VPN2);
@@ -1181,16 +1862,13 @@ public final class Cpu {
 		e.data[1].dirty = getCpValueBoolean(CPR_ENTRYLO1_DIRTY);
 		e.data[1].valid = getCpValueBoolean(CPR_ENTRYLO1_VALID);
 		
-		log.println("updated tlb[" + i + "]=" + e);
-		
-		if (e.pageMask != 0) {
-			throw new RuntimeException("non zero page mask");
-		}
+		log.println(Logger.DEBUG, () -> "updated tlb[" + i + "]=" + e);
+		resetBlock();
 	}
 	
 	public void panic () {
 		log.println("panic in cycle " + cycle);
-		execException(new CpuExceptionParams(CpuConstants.EX_BREAKPOINT));
+		execException(breakpointParams);
 	}
 	
 }
@@ -1,11 +1,12 @@
 package sys.mips;
 
-/** internal exception */
+/** internal exception, without a stack trace as it is only used for control flow */
 public class CpuException extends RuntimeException {
 	
 	public final CpuExceptionParams ep;
 
 	public CpuException (CpuExceptionParams ep) {
+		super(null, null, false, false);
 		this.ep = ep;
 	}
 	
@@ -3,42 +3,47 @@ package sys.mips;
 import sys.malta.MaltaUtil;
 
 /**
- * cpu exception parameters
+ * cpu exception parameters. the synchronous exception parameters are reused
+ * (see Cpu.exception), so they must not be kept after they are handled.
  */
 public class CpuExceptionParams {
 	
-	public final int excode;
-	public final Integer interrupt;
-	public final Integer irq;
-	public final Integer vaddr;
-	public final Boolean tlbRefill;
+	public int excode;
+	/** interrupt or -1 */
+	public int interrupt;
+	/** irq or -1 */
+	public int irq;
+	/** bad virtual address for address and tlb errors */
+	public int vaddr;
+	/** tlb error is a refill (no matching entry) */
+	public boolean tlbRefill;
 	
 	public CpuExceptionParams (int excode) {
-		this(excode, null, null, null, null);
+		this(excode, -1, -1, 0, false);
 	}
 	
 	/** hardware interrupt */
 	public CpuExceptionParams (int excode, int interrupt, int irq) {
-		this(excode, interrupt, irq, null, null);
+		this(excode, interrupt, irq, 0, false);
+		if (interrupt < 0 || interrupt >= 16) {
+			throw new RuntimeException("invalid interrupt " + interrupt);
+		}
+		if (irq < 0 || irq >= 16) {
+			throw new RuntimeException("invalid irq " + irq);
+		}
 	}
 	
 	/** virtual address error */
 	public CpuExceptionParams (int excode, int vaddr) {
-		this(excode, null, null, vaddr, null);
+		this(excode, -1, -1, vaddr, false);
 	}
 	
 	/** tlb error */
 	public CpuExceptionParams (int excode, int vaddr, boolean isTlbRefill) {
-		this(excode, null, null, vaddr, isTlbRefill);
+		this(excode, -1, -1, vaddr, isTlbRefill);
 	}
 	
-	private CpuExceptionParams (int excode, Integer interrupt, Integer irq, Integer vaddr, Boolean isTlbRefill) {
-		if (interrupt != null && (interrupt < 0 || interrupt >= 16)) {
-			throw new RuntimeException("invalid interrupt " + interrupt);
-		}
-		if (irq != null && (irq < 0 || irq >= 16)) {
-			throw new RuntimeException("invalid irq " + irq);
-		}
+	private CpuExceptionParams (int excode, int interrupt, int irq, int vaddr, boolean isTlbRefill) {
 		this.excode = excode;
 		this.interrupt = interrupt;
 		this.irq = irq;
@@ -46,13 +51,30 @@ public class CpuExceptionParams {
 		this.tlbRefill = isTlbRefill;
 	}
 	
+	/** set address or tlb error */
+	final void set (int excode, int vaddr, boolean isTlbRefill) {
+		this.excode = excode;
+		this.interrupt = -1;
+		this.irq = -1;
+		this.vaddr = vaddr;
+		this.tlbRefill = isTlbRefill;
+	}
+	
 	@Override
 	public String toString () {
 		String exs = InstructionUtil.exceptionString(excode);
-		String ints = interrupt != null ? " int=" + MaltaUtil.interruptString(interrupt) : "";
-		String irqs = irq != null ? " irq=" + MaltaUtil.irqString(irq) : "";
-		String vas = vaddr != null ? " vaddr=" + Integer.toHexString(vaddr) : "";
-		String tlbs = tlbRefill != null ? " refill=" + tlbRefill : "";
+		String ints = interrupt >= 0 ? " int=" + MaltaUtil.interruptString(interrupt) : "";
+		String irqs = irq >= 0 ? " irq=" + MaltaUtil.irqString(irq) : "";
+		String vas = hasVaddr() ? " vaddr=" + Integer.toHexString(vaddr) : "";
+		String tlbs = isTlb() ? " refill=" + tlbRefill : "";
 		return "CEP[ex=" + exs + ints + irqs + vas + tlbs + "]";
 	}
+	
+	private boolean isTlb () {
+		return excode == CpuConstants.EX_TLB_LOAD || excode == CpuConstants.EX_TLB_STORE;
+	}
+	
+	private boolean hasVaddr () {
+		return isTlb() || excode == CpuConstants.EX_ADDR_ERROR_LOAD || excode == CpuConstants.EX_ADDR_ERROR_STORE;
+	}
 }
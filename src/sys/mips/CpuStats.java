@@ -3,11 +3,13 @@ package sys.mips;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import sys.malta.MaltaUtil;
 
 public class CpuStats {
-	public final Map<String, int[]> isnCount = new HashMap<>();
+	/** instructions executed by instruction set id, the last is unknown instructions (only updated by the cpu thread) */
+	public final long[] isnCounts = new long[InstructionSet.getInstance().getCount() + 1];
 	public final int[] exceptions = new int[32];
 	public final int[] irqs = new int[16];
 	public final int[] interrupts = new int[16];
@@ -16,12 +18,16 @@ public class CpuStats {
 	public volatile long waitTimeNs;
 	public volatile int waitCount;
 	public volatile int scSuccess, scFail;
-	
-	public CpuStats () {
-		for (String name : InstructionSet.getInstance().getNameMap().keySet()) {
-			isnCount.put(name, new int[1]);
-		}
-	}
+	/** number of blocks translated */
+	public volatile int translations;
+	/** software tlb hits and misses (not volatile, only updated by the cpu thread) */
+	public long tlbHits, tlbMisses;
+	/** tlb refills done without running the guest handler (only updated by the cpu thread) */
+	public long nativeRefills;
+	/** cycles skipped by wait instructions (not volatile, only updated by the cpu thread) */
+	public long idleCycles;
+	/** high level emulated calls and calls that ran the instructions instead (only updated by the cpu thread) */
+	public long hleCalls, hleFallbacks;
 	
 	public String exceptionsString () {
 		return arrayString(exceptions, n -> InstructionUtil.exceptionString(n));
@@ -67,11 +73,12 @@ public class CpuStats {
 	
 	public List<?> instructionsByPop () {
 		// instructions by pop
-		return isnCount.entrySet()
-				.stream()
-				.filter(x -> x.getValue()[0] > 0)
-				.sorted((x,y) -> y.getValue()[0] - x.getValue()[0])
-				.map(x -> x.getKey() + "=" + x.getValue()[0])
+		final InstructionSet set = InstructionSet.getInstance();
+		return IntStream.range(0, isnCounts.length)
+				.filter(x -> isnCounts[x] > 0)
+				.boxed()
+				.sorted((x,y) -> Long.compare(isnCounts[y], isnCounts[x]))
+				.map(x -> (x < set.getCount() ? set.getInstruction(x).name : "unknown") + "=" + isnCounts[x])
 				.collect(Collectors.toList());
 	}
 	
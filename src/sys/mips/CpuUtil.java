@@ -18,14 +18,19 @@ public class CpuUtil {
 	
 	public static final long NS_IN_S = 1000000000;
 	
-	/** load elf file into cpu, set entry point, return max address */
+	/** load elf file into cpu with heap ram, set entry point, return max address */
 	public static Cpu loadElf (final FileChannel chan, final int memsize, final int[] top) throws Exception {
+		return loadElf(chan, new HeapRam(memsize >>> 2), top);
+	}
+	
+	/** load elf file into cpu with the given ram, set entry point, return max address */
+	public static Cpu loadElf (final FileChannel chan, final Ram ram, final int[] top) throws Exception {
 		MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
 		ELF32 elf = new ELF32(buf);
 		//System.out.println("elf=" + elf);
 		elf.print(System.out);
 		
-		Cpu cpu = new Cpu(memsize, elf.header.data == ELF32Header.ELFDATA2LSB);
+		Cpu cpu = new Cpu(ram, elf.header.data == ELF32Header.ELFDATA2LSB);
 		Memory mem = cpu.getMemory();
 		Symbols sym = cpu.getSymbols();
 		
@@ -1,5 +1,9 @@
 package sys.mips;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * device interface. all addresses are physical (so you can look them up in the
  * symbol table) and need to be translated to offsets by the device itself.
@@ -28,6 +32,14 @@ public abstract class Device {
 		throw rx(addr);
 	}
 	
+	/**
+	 * return the device that handles read/write at this physical address, or
+	 * null if it isn't mapped
+	 */
+	public Device getDevice (final int addr) {
+		return isMapped(addr) ? this : null;
+	}
+	
 	/** read at the physical address */
 	public byte loadByte (final int addr) {
 		throw rx(addr);
@@ -58,6 +70,16 @@ public abstract class Device {
 		throw rx(addr);
 	}
 	
+	/** write the registers of this device to a snapshot */
+	public void saveState (final DataOutput out) throws IOException {
+		//
+	}
+	
+	/** read the registers written by saveState and reschedule any events */
+	public void loadState (final DataInput in) throws IOException {
+		//
+	}
+	
 	public void fire (int irq) {
 		parent.fire(irq);
 	}
@@ -7,6 +7,7 @@ public class Entry {
 	
 	public final EntryData[] data = new EntryData[2];
 	
+	/** mask field of PageMask, the low bits of vpn2 to ignore (0 for 4KB pages) */
 	public int pageMask;
 	public int virtualPageNumber2;
 	public int addressSpaceId;
@@ -20,9 +21,9 @@ public class Entry {
 	
 	@Override
 	public String toString () {
-		return String.format("Entry[%s vpn2=%x even=%s odd=%s]",
+		return String.format("Entry[%s vpn2=%x mask=%x even=%s odd=%s]",
 				global ? "global" : "asid=" + Integer.toHexString(addressSpaceId),
-				virtualPageNumber2,
+				virtualPageNumber2, pageMask,
 				data[0], data[1]);
 	}
 }
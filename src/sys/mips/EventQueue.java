@@ -0,0 +1,181 @@
+package sys.mips;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * events scheduled in virtual time (cpu cycles), kept in a binary min-heap
+ * ordered by deadline. not thread safe, only to be used by the cpu thread.
+ */
+public final class EventQueue {
+
+	private final LongSupplier clock;
+	private long[] deadlines = new long[8];
+	private long[] periods = new long[8];
+	private Runnable[] events = new Runnable[8];
+	private int size;
+	/** deadline of the first event, or Long.MAX_VALUE if there isn't one */
+	private long next = Long.MAX_VALUE;
+
+	/** create event queue with the given source of the current time */
+	public EventQueue (LongSupplier clock) {
+		this.clock = clock;
+	}
+
+	/** deadline of the first event, or Long.MAX_VALUE if there isn't one */
+	public final long next () {
+		return next;
+	}
+
+	/** the current virtual time */
+	public long time () {
+		return clock.getAsLong();
+	}
+
+	public int size () {
+		return size;
+	}
+
+	/** schedule event once after delay cycles */
+	public void add (long delay, Runnable event) {
+		add(delay, 0, event);
+	}
+
+	/**
+	 * schedule event after delay cycles, and then every period cycles if
+	 * period is greater than 0
+	 */
+	public void add (long delay, long period, Runnable event) {
+		if (delay < 0 || period < 0) {
+			throw new IllegalArgumentException("delay " + delay + " period " + period);
+		}
+		if (size == events.length) {
+			deadlines = Arrays.copyOf(deadlines, size * 2);
+			periods = Arrays.copyOf(periods, size * 2);
+			events = Arrays.copyOf(events, size * 2);
+		}
+		deadlines[size] = clock.getAsLong() + delay;
+		periods[size] = period;
+		events[size] = event;
+		up(size++);
+		next = deadlines[0];
+	}
+
+	/** cancel all occurrences of the event, returns true if there were any */
+	public boolean remove (Runnable event) {
+		boolean removed = false;
+		for (int n = 0; n < size; n++) {
+			if (events[n] == event) {
+				// restart, the heap is reordered
+				removeAt(n);
+				removed = true;
+				n = -1;
+			}
+		}
+		return removed;
+	}
+
+	/** write the time to go and period of the event (if scheduled) to a snapshot */
+	public void save (DataOutput out, Runnable event) throws IOException {
+		for (int n = 0; n < size; n++) {
+			if (events[n] == event) {
+				// might be slightly overdue
+				out.writeLong(Math.max(0, deadlines[n] - clock.getAsLong()));
+				out.writeLong(periods[n]);
+				return;
+			}
+		}
+		out.writeLong(-1);
+		out.writeLong(0);
+	}
+
+	/** reschedule the event as written by save */
+	public void load (DataInput in, Runnable event) throws IOException {
+		final long delay = in.readLong();
+		final long period = in.readLong();
+		remove(event);
+		if (delay >= 0) {
+			add(delay, period, event);
+		}
+	}
+
+	/**
+	 * run all the events with a deadline at or before the given time, periodic
+	 * events are rescheduled at a fixed rate
+	 */
+	public void poll (long time) {
+		while (size > 0 && deadlines[0] <= time) {
+			final Runnable e = events[0];
+			final long p = periods[0];
+			if (p > 0) {
+				deadlines[0] += p;
+				down(0);
+			} else {
+				removeAt(0);
+			}
+			next = size > 0 ? deadlines[0] : Long.MAX_VALUE;
+			e.run();
+		}
+	}
+
+	private void removeAt (int i) {
+		size--;
+		if (i != size) {
+			move(size, i);
+			down(i);
+			up(i);
+		}
+		events[size] = null;
+		next = size > 0 ? deadlines[0] : Long.MAX_VALUE;
+	}
+
+	private void up (int i) {
+		while (i > 0) {
+			final int p = (i - 1) >>> 1;
+			if (deadlines[p] <= deadlines[i]) {
+				break;
+			}
+			swap(i, p);
+			i = p;
+		}
+	}
+
+	private void down (int i) {
+		while (true) {
+			final int l = i * 2 + 1;
+			if (l >= size) {
+				break;
+			}
+			final int c = l + 1 < size && deadlines[l + 1] < deadlines[l] ? l + 1 : l;
+			if (deadlines[i] <= deadlines[c]) {
+				break;
+			}
+			swap(i, c);
+			i = c;
+		}
+	}
+
+	private void move (int from, int to) {
+		deadlines[to] = deadlines[from];
+		periods[to] = periods[from];
+		events[to] = events[from];
+	}
+
+	private void swap (int i, int j) {
+		final long d = deadlines[i];
+		final long p = periods[i];
+		final Runnable e = events[i];
+		move(j, i);
+		deadlines[j] = d;
+		periods[j] = p;
+		events[j] = e;
+	}
+
+	@Override
+	public String toString () {
+		return "EventQueue[size=" + size + " next=" + next + "]";
+	}
+}
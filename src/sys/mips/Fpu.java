@@ -1,5 +1,9 @@
 package sys.mips;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import static sys.mips.CpuConstants.*;
 import static sys.mips.CpuFunctions.*;
 import static sys.mips.InstructionUtil.*;
@@ -36,6 +40,25 @@ public class Fpu {
 		return fpControlReg;
 	}
 	
+	public void saveState (final DataOutput out) throws IOException {
+		for (int n = 0; n < fpReg.length; n++) {
+			out.writeInt(fpReg[n]);
+		}
+		for (int n = 0; n < fpControlReg.length; n++) {
+			out.writeInt(fpControlReg[n]);
+		}
+	}
+	
+	public void loadState (final DataInput in) throws IOException {
+		for (int n = 0; n < fpReg.length; n++) {
+			fpReg[n] = in.readInt();
+		}
+		for (int n = 0; n < fpControlReg.length; n++) {
+			fpControlReg[n] = in.readInt();
+		}
+		roundingMode = FpRound.getInstance(fpControlReg[FPCR_FCSR]);
+	}
+	
 	public final void execFpuRs (final int isn) {
 		final int rs = rs(isn);
 		final int rt = rt(isn);
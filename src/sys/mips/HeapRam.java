@@ -0,0 +1,135 @@
+package sys.mips;
+
+import java.util.Arrays;
+
+/**
+ * ram on the java heap as a table of pages. pages can be shared with forked
+ * copies, a shared page is copied on the first write. pages that have never
+ * been written share a single zero page, so they aren't allocated until
+ * then.
+ */
+public final class HeapRam implements Ram {
+
+	/** the page of every unwritten page, never written to */
+	private static final int[] ZERO = new int[PAGE_WORDS];
+
+	private final int[][] pages;
+	/** pages that might be referenced by another ram (or are the zero page), so can't be written */
+	private final boolean[] shared;
+	private final int size;
+	/** number of pages that aren't the zero page */
+	private int allocated;
+
+	/** create zeroed ram of the given size in words */
+	public HeapRam (final int size) {
+		this.size = size;
+		this.pages = new int[(size + PAGE_WORDS - 1) >>> PAGE_SHIFT][];
+		this.shared = new boolean[pages.length];
+		Arrays.fill(pages, ZERO);
+		Arrays.fill(shared, true);
+	}
+
+	private HeapRam (final HeapRam ram) {
+		this.size = ram.size;
+		this.pages = ram.pages.clone();
+		this.shared = new boolean[pages.length];
+		this.allocated = ram.allocated;
+		Arrays.fill(shared, true);
+	}
+
+	@Override
+	public int size () {
+		return size;
+	}
+
+	@Override
+	public final int load (final int i) {
+		return pages[i >>> PAGE_SHIFT][i & (PAGE_WORDS - 1)];
+	}
+
+	@Override
+	public final void store (final int i, final int value) {
+		final int p = i >>> PAGE_SHIFT;
+		final int[] page = shared[p] ? copy(p) : pages[p];
+		page[i & (PAGE_WORDS - 1)] = value;
+	}
+
+	@Override
+	public final void load (final int i, final int[] a) {
+		System.arraycopy(pages[i >>> PAGE_SHIFT], i & (PAGE_WORDS - 1), a, 0, a.length);
+	}
+
+	@Override
+	public final void store (final int i, final int[] a) {
+		final int p = i >>> PAGE_SHIFT;
+		final int[] page = shared[p] ? copy(p) : pages[p];
+		System.arraycopy(a, 0, page, i & (PAGE_WORDS - 1), a.length);
+	}
+
+	@Override
+	public final void copy (final int src, final int dst, final int len) {
+		final int p = dst >>> PAGE_SHIFT;
+		// get the destination first as it might replace the source page
+		final int[] page = shared[p] ? copy(p) : pages[p];
+		System.arraycopy(pages[src >>> PAGE_SHIFT], src & (PAGE_WORDS - 1), page, dst & (PAGE_WORDS - 1), len);
+	}
+
+	@Override
+	public final void fill (final int i, final int len, final int value) {
+		final int p = i >>> PAGE_SHIFT;
+		if (value != 0 || pages[p] != ZERO) {
+			final int[] page = shared[p] ? copy(p) : pages[p];
+			Arrays.fill(page, i & (PAGE_WORDS - 1), (i & (PAGE_WORDS - 1)) + len, value);
+		}
+	}
+
+	/** true if the page has been written to */
+	@Override
+	public boolean isUsed (final int p) {
+		return pages[p] != ZERO;
+	}
+
+	@Override
+	public int usedPages () {
+		return allocated;
+	}
+
+	/**
+	 * create a copy of this ram that shares all the pages. until a page is
+	 * written to, neither ram can be modified while the other is being read.
+	 */
+	@Override
+	public Ram fork () {
+		Arrays.fill(shared, true);
+		return new HeapRam(this);
+	}
+
+	/** number of pages shared with another ram */
+	public int sharedPages () {
+		int c = 0;
+		for (int p = 0; p < pages.length; p++) {
+			if (shared[p] && pages[p] != ZERO) {
+				c++;
+			}
+		}
+		return c;
+	}
+
+	private int[] copy (final int p) {
+		final int[] page;
+		if (pages[p] == ZERO) {
+			page = new int[PAGE_WORDS];
+			allocated++;
+		} else {
+			page = pages[p].clone();
+		}
+		pages[p] = page;
+		shared[p] = false;
+		return page;
+	}
+
+	@Override
+	public String toString () {
+		return "HeapRam[size=" + size + " pages=" + pages.length + " allocated=" + allocated + " shared=" + sharedPages() + "]";
+	}
+}
@@ -0,0 +1,284 @@
+package sys.mips;
+
+import static sys.mips.CpuConstants.*;
+import static sys.mips.MemoryUtil.*;
+
+import java.util.*;
+
+import sys.util.Symbols;
+
+/**
+ * high level emulation of kernel library routines. when the cpu calls one of
+ * them at the start of a block it is performed directly on ram and returns to
+ * ra. every page is translated before anything is written, and if any of them
+ * isn't mapped or isn't ram the instructions are run instead, so they take the
+ * tlb refill (or exception fixup) as usual.
+ */
+public final class Hle {
+
+	/** a routine, returns false if the instructions should be run instead */
+	interface Routine {
+		boolean exec ();
+	}
+
+	/** bytes in a 4KB page */
+	private static final int PAGE = 0x1000;
+
+	/** routines by physical word index of their first instruction */
+	private final Map<Integer, Routine> routines = new HashMap<>();
+	/** calls and fallbacks of each routine */
+	private final Map<String, int[]> counts = new TreeMap<>();
+	private final Cpu cpu;
+	private final Memory memory;
+	private final Ram ram;
+	private final int[] reg;
+	private final CpuStats stats;
+	/** 0 for little endian, 3 for big endian */
+	private final int wordAddrXor;
+
+	/** find the routines in the symbols of the cpu */
+	public Hle (final Cpu cpu) {
+		this.cpu = cpu;
+		this.memory = cpu.getMemory();
+		this.ram = memory.getRam();
+		this.reg = cpu.getRegisters();
+		this.stats = cpu.getCpuStats();
+		this.wordAddrXor = cpu.isLittleEndian() ? 0 : 3;
+		add("memcpy", this::memcpy);
+		add("memmove", this::memmove);
+		add("__copy_user", this::copyUser);
+		add("memset", this::memset);
+		add("__bzero", this::bzero);
+		add("clear_page", this::clearPage);
+		add("copy_page", this::copyPage);
+		add("strlen", this::strlen);
+	}
+
+	private void add (final String name, final Routine r) {
+		final Symbols symbols = cpu.getSymbols();
+		if (symbols.hasName(name)) {
+			final int addr = symbols.getAddr(name);
+			if (addr >= KSEG0 && addr < KSEG1) {
+				final int[] c = new int[2];
+				counts.put(name, c);
+				routines.put((addr & KSEG_MASK) >>> 2, () -> exec(r, c));
+			}
+		}
+	}
+
+	/** get the routine starting at the physical word index, if any */
+	Routine get (final int index) {
+		return routines.isEmpty() ? null : routines.get(index);
+	}
+
+	private boolean exec (final Routine r, final int[] c) {
+		try {
+			if (r.exec()) {
+				c[0]++;
+				stats.hleCalls++;
+				return true;
+			}
+		} catch (CpuException e) {
+			// not mapped
+		}
+		c[1]++;
+		stats.hleFallbacks++;
+		return false;
+	}
+
+	/** void *memcpy(void *dst, const void *src, size_t n) */
+	private boolean memcpy () {
+		final int dst = reg[REG_A0], src = reg[REG_A1], n = reg[REG_A2];
+		if (copy(dst, src, n)) {
+			reg[REG_V0] = dst;
+			reg[REG_A2] = 0;
+			return ret(8 + n / 2);
+		}
+		return false;
+	}
+
+	/** void *memmove(void *dst, const void *src, size_t n) */
+	private boolean memmove () {
+		final int dst = reg[REG_A0], src = reg[REG_A1], n = reg[REG_A2];
+		// only copies forwards
+		if (dst != src && Integer.compareUnsigned(dst - src, n) < 0) {
+			return false;
+		}
+		return memcpy();
+	}
+
+	/** copy_user(dst, src, n), returns the number of bytes not copied in a2 */
+	private boolean copyUser () {
+		final int n = reg[REG_A2];
+		if (copy(reg[REG_A0], reg[REG_A1], n)) {
+			reg[REG_A2] = 0;
+			return ret(8 + n / 2);
+		}
+		return false;
+	}
+
+	/** void *memset(void *s, int c, size_t n) */
+	private boolean memset () {
+		final int s = reg[REG_A0], n = reg[REG_A2];
+		if (fill(s, reg[REG_A1] & 0xff, n)) {
+			reg[REG_V0] = s;
+			reg[REG_A2] = 0;
+			return ret(8 + n / 4);
+		}
+		return false;
+	}
+
+	/** bzero(s, 0, n), returns the number of bytes not cleared in a2 */
+	private boolean bzero () {
+		final int n = reg[REG_A2];
+		if (fill(reg[REG_A0], 0, n)) {
+			reg[REG_A2] = 0;
+			return ret(8 + n / 4);
+		}
+		return false;
+	}
+
+	/** void clear_page(void *page) */
+	private boolean clearPage () {
+		return fill(reg[REG_A0], 0, PAGE) && ret(PAGE / 4);
+	}
+
+	/** void copy_page(void *to, void *from) */
+	private boolean copyPage () {
+		return copy(reg[REG_A0], reg[REG_A1], PAGE) && ret(PAGE / 2);
+	}
+
+	/** size_t strlen(const char *s) */
+	private boolean strlen () {
+		final int s = reg[REG_A0];
+		int n = 0;
+		while (true) {
+			final int p = paddr(s + n, false);
+			if (p < 0) {
+				return false;
+			}
+			final int end = n + PAGE - ((s + n) & 0xfff);
+			for (int i = p; n < end; i++, n++) {
+				if (loadByte(i) == 0) {
+					reg[REG_V0] = n;
+					return ret(8 + n * 4);
+				}
+			}
+		}
+	}
+
+	/** return to ra, accounting for the instructions the routine would have run */
+	private boolean ret (final int isns) {
+		final CallStack calls = cpu.getCallStack();
+		if (calls != null) {
+			calls.ret(reg[REG_RA], cpu.getCycle());
+		}
+		cpu.setPc(reg[REG_RA]);
+		cpu.skipCycles(isns);
+		return true;
+	}
+
+	/** copy n bytes forwards, false if any of the pages aren't ram */
+	private boolean copy (int dst, int src, int n) {
+		if (!mapped(dst, n, true) || !mapped(src, n, false)) {
+			return false;
+		}
+		while (n > 0) {
+			final int len = Math.min(n, Math.min(PAGE - (dst & 0xfff), PAGE - (src & 0xfff)));
+			copyPhys(paddr(dst, true), paddr(src, false), len);
+			dst += len;
+			src += len;
+			n -= len;
+		}
+		return true;
+	}
+
+	/** copy len bytes of physical memory within a page */
+	private void copyPhys (int pd, int ps, int len) {
+		memory.invalidateBlocks(pd >>> 2);
+		if (((pd ^ ps) & 3) == 0) {
+			for (; len > 0 && (pd & 3) != 0; len--) {
+				storeByte(pd++, loadByte(ps++));
+			}
+			final int w = len >>> 2;
+			ram.copy(ps >>> 2, pd >>> 2, w);
+			pd += w << 2;
+			ps += w << 2;
+			len &= 3;
+		}
+		for (; len > 0; len--) {
+			storeByte(pd++, loadByte(ps++));
+		}
+	}
+
+	/** set n bytes to b, false if any of the pages aren't ram */
+	private boolean fill (int s, final int b, int n) {
+		if (!mapped(s, n, true)) {
+			return false;
+		}
+		while (n > 0) {
+			final int len = Math.min(n, PAGE - (s & 0xfff));
+			fillPhys(paddr(s, true), b, len);
+			s += len;
+			n -= len;
+		}
+		return true;
+	}
+
+	/** set len bytes of physical memory within a page to b */
+	private void fillPhys (int p, final int b, int len) {
+		memory.invalidateBlocks(p >>> 2);
+		for (; len > 0 && (p & 3) != 0; len--) {
+			storeByte(p++, b);
+		}
+		final int w = len >>> 2;
+		ram.fill(p >>> 2, w, b * 0x0101_0101);
+		p += w << 2;
+		len &= 3;
+		for (; len > 0; len--) {
+			storeByte(p++, b);
+		}
+	}
+
+	/** true if every page of the n bytes at vaddr is ram (may throw tlb exceptions) */
+	private boolean mapped (final int vaddr, final int n, final boolean store) {
+		if (n < 0) {
+			return false;
+		}
+		final int end = n + (vaddr & 0xfff);
+		for (int o = 0; o < end; o += PAGE) {
+			if (paddr((vaddr & ~0xfff) + o, store) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** physical byte address, or -1 if it isn't ram */
+	private int paddr (final int vaddr, final boolean store) {
+		final int i = memory.index(vaddr, store);
+		return i >= 0 && i < ram.size() ? (i << 2) | (vaddr & 3) : -1;
+	}
+
+	private int loadByte (final int p) {
+		return (ram.load(p >>> 2) >>> (((p & 3) ^ wordAddrXor) << 3)) & 0xff;
+	}
+
+	private void storeByte (final int p, final int b) {
+		final int i = p >>> 2;
+		final int s = ((p & 3) ^ wordAddrXor) << 3;
+		ram.store(i, (ram.load(i) & ~(0xff << s)) | ((b & 0xff) << s));
+	}
+
+	@Override
+	public String toString () {
+		final StringBuilder sb = new StringBuilder("Hle[");
+		for (Map.Entry<String, int[]> e : counts.entrySet()) {
+			if (sb.length() > 4) {
+				sb.append(" ");
+			}
+			sb.append(e.getKey()).append("=").append(e.getValue()[0]).append("/").append(e.getValue()[1]);
+		}
+		return sb.append("]").toString();
+	}
+}
@@ -5,6 +5,8 @@ package sys.mips;
  */
 public class Instruction {
 	
+	/** dense index in the instruction set, or -1 if not in it */
+	public final int id;
 	/** the code at bit position 26 */
 	public final int op;
 	/** the code at bit position 21 */
@@ -22,6 +24,11 @@ public class Instruction {
 	}
 	
 	public Instruction (int op, int rs, int rt, int fn, String name, String format) {
+		this(-1, op, rs, rt, fn, name, format);
+	}
+	
+	public Instruction (int id, int op, int rs, int rt, int fn, String name, String format) {
+		this.id = id;
 		this.op = op;
 		this.rs = rs;
 		this.rt = rt;
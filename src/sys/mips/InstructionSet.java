@@ -52,6 +52,9 @@ public class InstructionSet {
 	private final SortedMap<String, Instruction> nameMap = new TreeMap<>();
 	private final SortedMap<String, Instruction> nameMapUnmod = Collections.unmodifiableSortedMap(nameMap);
 	
+	/** all instructions by id */
+	private final List<Instruction> byId = new ArrayList<>();
+	
 	private final Instruction[] operation = new Instruction[64];
 	private final Instruction[] function = new Instruction[64];
 	private final Instruction[] function2 = new Instruction[64];
@@ -215,45 +218,46 @@ public class InstructionSet {
 	}
 
 	private void addOp (int op, String name, String format) {
-		addIsn(new Instruction(op, 0, 0, 0, name, format));
+		addIsn(new Instruction(byId.size(), op, 0, 0, 0, name, format));
 	}
 	
 	private void addRegImm (int rt, String name, String format) {
-		addIsn(new Instruction(OP_REGIMM, 0, rt, 0, name, format));
+		addIsn(new Instruction(byId.size(), OP_REGIMM, 0, rt, 0, name, format));
 	}
 	
 	private void addFn (int fn, String name, String format) {
-		addIsn(new Instruction(OP_SPECIAL, 0, 0, fn, name, format));
+		addIsn(new Instruction(byId.size(), OP_SPECIAL, 0, 0, fn, name, format));
 	}
 	
 	private void addFn2 (int fn, String name, String format) {
-		addIsn(new Instruction(OP_SPECIAL2, 0, 0, fn, name, format));
+		addIsn(new Instruction(byId.size(), OP_SPECIAL2, 0, 0, fn, name, format));
 	}
 	
 	private void addCop0 (int rs, String name, String format) {
-		addIsn(new Instruction(OP_COP0, rs, 0, 0, name, format));
+		addIsn(new Instruction(byId.size(), OP_COP0, rs, 0, 0, name, format));
 	}
 	
 	private void addCop0Fn (int fn, String name, String format) {
-		addIsn(new Instruction(OP_COP0, CP_RS_CO, 0, fn, name, format));
+		addIsn(new Instruction(byId.size(), OP_COP0, CP_RS_CO, 0, fn, name, format));
 	}
 	
 	private void addCop1 (int rs, String name, String format) {
-		addIsn(new Instruction(OP_COP1, rs, 0, 0, name, format));
+		addIsn(new Instruction(byId.size(), OP_COP1, rs, 0, 0, name, format));
 	}
 	
 	private void addCop1Fn (int rs, int fn, String name, String format) {
-		addIsn(new Instruction(OP_COP1, rs, 0, fn, name, format));
+		addIsn(new Instruction(byId.size(), OP_COP1, rs, 0, fn, name, format));
 	}
 	
 	private void addCop1FnX (int fn, String name, String format) {
-		addIsn(new Instruction(OP_COP1X, 0, 0, fn, name, format));
+		addIsn(new Instruction(byId.size(), OP_COP1X, 0, 0, fn, name, format));
 	}
 	
 	private void addIsn (Instruction isn) {
 		if (nameMap.put(isn.name, isn) != null) {
 			throw new RuntimeException("duplicate name " + isn);
 		}
+		byId.add(isn);
 		
 		switch (isn.op) {
 			case OP_SPECIAL:
@@ -295,6 +299,10 @@ public class InstructionSet {
 				set(function2, isn.fn, isn);
 				break;
 				
+			case OP_COP1X:
+				set(fpuFnX, isn.fn, isn);
+				break;
+				
 			default:
 				set(operation, isn.op, isn);
 		}
@@ -303,6 +311,22 @@ public class InstructionSet {
 	public SortedMap<String, Instruction> getNameMap () {
 		return nameMapUnmod;
 	}
+	
+	/** number of instruction ids, which is also the id of unknown instructions */
+	public int getCount () {
+		return byId.size();
+	}
+	
+	/** get instruction by id, null for unknown */
+	public Instruction getInstruction (int id) {
+		return id < byId.size() ? byId.get(id) : null;
+	}
+	
+	/** get id of instruction, getCount() if it is unknown */
+	public int getId (int isn) {
+		final Instruction i = getIsn(isn);
+		return i != null ? i.id : byId.size();
+	}
 
 	public Instruction getIsn (int isn) {
 		final int op = op(isn);
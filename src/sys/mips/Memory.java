@@ -1,6 +1,10 @@
 package sys.mips;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import sys.malta.Malta;
 import sys.util.Logger;
@@ -21,21 +25,48 @@ public final class Memory extends Device {
 	private static final Logger log = new Logger("Memory");
 	
 	/** backing data as int (shift addr left 2 for index) */
-	private final int[] data;
+	private final Ram ram;
 	private final int wordAddrXor;
 	private final int halfWordAddrXor;
 	private final boolean littleEndian;
 	private final Entry[] entries = new Entry[16];
 	private final Malta malta;
 	private final Cpu cpu;
+	private final BlockCache blockCache;
+	private final CpuStats stats;
+	/** bytes of ram visible through kseg1, the rest of kseg1 is devices */
+	private final int kseg1Ram;
+	
+	/** software tlb size, must be a power of 2 */
+	private static final int STLB_SIZE = 0x100;
+	/** software tlb tag that never matches (the asid is only 8 bits) */
+	private static final int STLB_EMPTY = 0x100;
+	
+	/** software tlb tags (virtual page and asid) for loads and stores */
+	private final int[] loadTags = new int[STLB_SIZE], storeTags = new int[STLB_SIZE];
+	/** software tlb word index of the physical page for loads and stores */
+	private final int[] loadBases = new int[STLB_SIZE], storeBases = new int[STLB_SIZE];
+	/**
+	 * the last page larger than 4KB used for loads and stores: tag (virtual
+	 * page and asid), offset mask and physical address of the page. covers the
+	 * whole page so software tlb misses within it don't search the tlb.
+	 */
+	private final int[] loadLarge = { STLB_EMPTY, 0xfff, 0 }, storeLarge = { STLB_EMPTY, 0xfff, 0 };
+	/** offset mask of the page found by the last lookup1 */
+	private int lookupMask;
+	
+	/** virtual address of the current code page, or -1 if none */
+	private int fetchPage = -1;
+	/** word index of the physical page of the current code page */
+	private int fetchBase;
 	
 	private boolean kernelMode;
 	private int asid;
 	
-	public Memory (Cpu cpu, int size, boolean littleEndian) {
+	public Memory (Cpu cpu, Ram ram, boolean littleEndian) {
 		super(null, 0);
 		this.cpu = cpu;
-		this.data = new int[size >>> 2];
+		this.ram = ram;
 		this.littleEndian = littleEndian;
 		this.wordAddrXor = littleEndian ? 0 : 3;
 		this.halfWordAddrXor = littleEndian ? 0 : 2;
@@ -43,6 +74,10 @@ public final class Memory extends Device {
 			entries[n] = new Entry();
 		}
 		this.malta = new Malta(this, KSEG1);
+		this.kseg1Ram = (int) Math.min(Malta.M_PCI1, ram.size() * 4L);
+		this.blockCache = new BlockCache(cpu, ram);
+		this.stats = cpu.getCpuStats();
+		flushTlb();
 	}
 	
 	public Entry getEntry (int n) {
@@ -55,6 +90,8 @@ public final class Memory extends Device {
 	
 	public void setAsid (int asid) {
 		this.asid = asid;
+		this.fetchPage = -1;
+		cpu.resetBlock();
 	}
 	
 	@Override
@@ -67,6 +104,44 @@ public final class Memory extends Device {
 		malta.init();
 	}
 	
+	/** write the tlb and the devices (not the ram) to a snapshot */
+	@Override
+	public void saveState (final DataOutput out) throws IOException {
+		for (Entry e : entries) {
+			out.writeInt(e.pageMask);
+			out.writeInt(e.virtualPageNumber2);
+			out.writeInt(e.addressSpaceId);
+			out.writeBoolean(e.global);
+			for (EntryData d : e.data) {
+				out.writeInt(d.physicalFrameNumber);
+				out.writeBoolean(d.dirty);
+				out.writeBoolean(d.valid);
+			}
+		}
+		out.writeInt(asid);
+		out.writeBoolean(kernelMode);
+		malta.saveState(out);
+	}
+	
+	@Override
+	public void loadState (final DataInput in) throws IOException {
+		for (Entry e : entries) {
+			e.pageMask = in.readInt();
+			e.virtualPageNumber2 = in.readInt();
+			e.addressSpaceId = in.readInt();
+			e.global = in.readBoolean();
+			for (EntryData d : e.data) {
+				d.physicalFrameNumber = in.readInt();
+				d.dirty = in.readBoolean();
+				d.valid = in.readBoolean();
+			}
+		}
+		flushTlb();
+		setAsid(in.readInt());
+		setKernelMode(in.readBoolean());
+		malta.loadState(in);
+	}
+	
 	public boolean isLittleEndian () {
 		return littleEndian;
 	}
@@ -77,23 +152,34 @@ public final class Memory extends Device {
 	
 	public void setKernelMode (boolean kernelMode) {
 		this.kernelMode = kernelMode;
+		this.fetchPage = -1;
+		cpu.resetBlock();
 	}
 	
 	public Malta getMalta () {
 		return malta;
 	}
 	
+	public Ram getRam () {
+		return ram;
+	}
+	
+	/** discard the blocks of the page containing the physical word index after writing to it directly */
+	final void invalidateBlocks (final int i) {
+		blockCache.store(i);
+	}
+	
 	@Override
 	public final int loadWord (final int vaddr) {
 		if ((vaddr & 3) == 0) {
 			final int i = index(vaddr, false);
 			if (i >= 0) {
-				return data[i];
+				return ram.load(i);
 			} else {
 				return malta.loadWord(vaddr);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr, false);
 		}
 	}
 	
@@ -102,12 +188,13 @@ public final class Memory extends Device {
 		if ((vaddr & 3) == 0) {
 			int i = index(vaddr, true);
 			if (i >= 0) {
-				data[i] = value;
+				ram.store(i, value);
+				blockCache.store(i);
 			} else {
 				malta.storeWord(vaddr, value);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_STORE, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_STORE, vaddr, false);
 		}
 	}
 	
@@ -116,7 +203,7 @@ public final class Memory extends Device {
 		if ((vaddr & 1) == 0) {
 			final int i = index(vaddr, false);
 			if (i >= 0) {
-				final int w = data[i];
+				final int w = ram.load(i);
 				// 0,2 -> 2,0 -> 16,0
 				final int s = ((vaddr & 2) ^ halfWordAddrXor) << 3;
 				return (short) (w >>> s);
@@ -124,7 +211,7 @@ public final class Memory extends Device {
 				return malta.loadHalfWord(vaddr);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr, false);
 		}
 	}
 	
@@ -133,17 +220,18 @@ public final class Memory extends Device {
 		if ((vaddr & 1) == 0) {
 			int i = index(vaddr, true);
 			if (i >= 0) {
-				final int w = data[i];
+				final int w = ram.load(i);
 				// 0,2 -> 2,0 -> 16,0
 				final int s = ((vaddr & 2) ^ halfWordAddrXor) << 3;
 				final int andm = ~(0xffff << s);
 				final int orm = (value & 0xffff) << s;
-				data[i] = (w & andm) | orm;
+				ram.store(i, (w & andm) | orm);
+				blockCache.store(i);
 			} else {
 				malta.storeHalfWord(vaddr, value);
 			}
 		} else {
-			throw new CpuException(new CpuExceptionParams(CpuConstants.EX_ADDR_ERROR_STORE, vaddr));
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_STORE, vaddr, false);
 		}
 	}
 	
@@ -152,7 +240,7 @@ public final class Memory extends Device {
 	public final byte loadByte (final int vaddr) {
 		final int i = index(vaddr, false);
 		if (i >= 0) {
-			final int w = data[i];
+			final int w = ram.load(i);
 			// 0,1,2,3 xor 0 -> 0,1,2,3
 			// 0,1,2,3 xor 3 -> 3,2,1,0
 			// 0,1,2,3 -> 3,2,1,0 -> 24,16,8,0
@@ -167,18 +255,41 @@ public final class Memory extends Device {
 	public final void storeByte (final int vaddr, final byte value) {
 		int i = index(vaddr, true);
 		if (i >= 0) {
-			final int w = data[i];
+			final int w = ram.load(i);
 			// if xor=0: 0,1,2,3 -> 0,8,16,24
 			// if xor=3: 0,1,2,3 -> 3,2,1,0 -> 24,16,8,0
 			final int s = ((vaddr & 3) ^ wordAddrXor) << 3;
 			final int andm = ~(0xff << s);
 			final int orm = (value & 0xff) << s;
-			data[i] = (w & andm) | orm;
+			ram.store(i, (w & andm) | orm);
+			blockCache.store(i);
 		} else {
 			malta.storeByte(vaddr, value);
 		}
 	}
 	
+	/**
+	 * load the block of instructions starting at the virtual address, null if
+	 * the address is not in ram (so the instructions can't be cached)
+	 */
+	public final Block loadBlock (final int vaddr) {
+		if ((vaddr & 0xffff_f003) == fetchPage) {
+			// same page as last time, no need to translate
+			return blockCache.get(fetchBase | ((vaddr & 0xfff) >>> 2));
+		} else if ((vaddr & 3) == 0) {
+			final int i = index(vaddr, false);
+			if (i >= 0) {
+				fetchPage = vaddr & 0xffff_f000;
+				fetchBase = i & ~0x3ff;
+				return blockCache.get(i);
+			} else {
+				return null;
+			}
+		} else {
+			throw cpu.exception(CpuConstants.EX_ADDR_ERROR_LOAD, vaddr, false);
+		}
+	}
+	
 	/**
 	 * translate virtual address to physical. store affects dirty bit if true
 	 * and type of exception thrown if address is invalid.
@@ -191,13 +302,11 @@ public final class Memory extends Device {
 			return (vaddr & KSEG_MASK) >> 2;
 		} else if (vaddr >= 0 || (km && vaddr >= KSEG2)) {
 			// useg/kuseg/kseg2/kseg3 (translated, slow)
-			return lookup(vaddr, store) >> 2;
+			return lookup(vaddr, store);
 		} else if (km && vaddr < KSEG2) {
-			// kseg1 (malta/direct, very slow)
-			// really this should be same as kseg0, but we want to use the return value
-			// to know if we should call malta instead
-			//return vaddr & KSEG_MASK;
-			return -1;
+			// kseg1 (direct if sdram, otherwise malta, slow)
+			final int a = vaddr & KSEG_MASK;
+			return a < kseg1Ram ? a >> 2 : -1;
 		} else {
 			throw new RuntimeException("cannot translate kseg as user: " + Integer.toHexString(vaddr));
 		}
@@ -206,28 +315,83 @@ public final class Memory extends Device {
 	public final int probe (final int vpn2) {
 		for (int n = 0; n < entries.length; n++) {
 			Entry e = entries[n];
-			if (e.virtualPageNumber2 == vpn2 && (e.addressSpaceId == asid || e.global)) {
-				log.println("tlb probe = " + n);
-				return n;
+			if (((e.virtualPageNumber2 ^ vpn2) & ~e.pageMask) == 0 && (e.addressSpaceId == asid || e.global)) {
+				final int i = n;
+				log.println(Logger.DEBUG, () -> "tlb probe = " + i);
+				return i;
 			}
 		}
-		log.println("tlb probe miss");
+		log.println(Logger.DEBUG, "tlb probe miss");
 		return -1;
 	}
 	
 	/**
-	 * lookup virtual address using tlb
+	 * lookup virtual address using the software tlb, falling back to the tlb
+	 * entries. returns word index.
 	 */
 	private final int lookup (final int vaddr, final boolean store) {
-		int i = lookup1(vaddr, store);
-		// need to populate the packed entries...
-		//int j = lookup2(vaddr, store);
-		return i;
+		// tag includes asid so it doesn't need to be flushed when asid changes
+		final int tag = (vaddr & 0xffff_f000) | asid;
+		final int s = (vaddr >>> 12) & (STLB_SIZE - 1);
+		final int[] tags = store ? storeTags : loadTags;
+		final int[] bases = store ? storeBases : loadBases;
+		if (tags[s] == tag) {
+			stats.tlbHits++;
+			return bases[s] | ((vaddr & 0xfff) >>> 2);
+		} else {
+			final int[] large = store ? storeLarge : loadLarge;
+			final int m = large[1];
+			final int i;
+			if (((vaddr & ~m) | asid) == large[0]) {
+				i = (large[2] | (vaddr & m)) >> 2;
+			} else {
+				stats.tlbMisses++;
+				final int paddr = lookup1(vaddr, store);
+				if (lookupMask != 0xfff) {
+					large[0] = (vaddr & ~lookupMask) | asid;
+					large[1] = lookupMask;
+					large[2] = paddr & ~lookupMask;
+				}
+				i = paddr >> 2;
+			}
+			tags[s] = tag;
+			bases[s] = i & ~0x3ff;
+			return i;
+		}
+	}
+	
+	/** invalidate the software tlb slots of the pages mapped by the tlb entry */
+	public final void invalidateTlb (final int n) {
+		fetchPage = -1;
+		final Entry e = entries[n];
+		// the even and odd pages
+		final int size = (e.pageMask + 1) << 13;
+		final int vaddr = (e.virtualPageNumber2 << 13) & -size;
+		final int slots = Math.min(size >>> 12, STLB_SIZE);
+		for (int k = 0; k < slots; k++) {
+			final int s = ((vaddr >>> 12) + k) & (STLB_SIZE - 1);
+			if ((loadTags[s] & -size) == vaddr) {
+				loadTags[s] = STLB_EMPTY;
+			}
+			if ((storeTags[s] & -size) == vaddr) {
+				storeTags[s] = STLB_EMPTY;
+			}
+		}
+		loadLarge[0] = STLB_EMPTY;
+		storeLarge[0] = STLB_EMPTY;
+	}
+	
+	/** invalidate the whole software tlb */
+	public final void flushTlb () {
+		fetchPage = -1;
+		Arrays.fill(loadTags, STLB_EMPTY);
+		Arrays.fill(storeTags, STLB_EMPTY);
+		loadLarge[0] = STLB_EMPTY;
+		storeLarge[0] = STLB_EMPTY;
 	}
 	
 	private final int lookup1 (final int vaddr, final boolean store) {	
 		final int vpn2 = CpuFunctions.vpn2(vaddr);
-		final int eo = CpuFunctions.evenodd(vaddr);
 		boolean refill = true;
 		
 		// log.debug("lookup vaddr=" + Integer.toHexString(vaddr) + " asid=" +
@@ -237,11 +401,13 @@ public final class Memory extends Device {
 			Entry e = entries[n];
 			// log.debug("entry[" + n + "]=" + e);
 			
-			if (e.virtualPageNumber2 == vpn2 && (e.addressSpaceId == asid || e.global)) {
+			if (((e.virtualPageNumber2 ^ vpn2) & ~e.pageMask) == 0 && (e.addressSpaceId == asid || e.global)) {
 				// log.debug("tlb hit");
-				EntryData d = e.data[eo];
+				// the bit above the page offset selects the even or odd page
+				final int mask = (e.pageMask << 12) | 0xfff;
+				EntryData d = e.data[(vaddr & (mask + 1)) != 0 ? 1 : 0];
 				if (!d.valid) {
-					log.println("entry invalid (not a refill)...");
+					log.println(Logger.DEBUG, "entry invalid (not a refill)...");
 					refill = false;
 					break;
 				}
@@ -251,14 +417,15 @@ public final class Memory extends Device {
 					d.dirty = true;
 				}
 				
-				final int paddr = (d.physicalFrameNumber << 12) | (vaddr & 0xfff);
+				final int paddr = ((d.physicalFrameNumber << 12) & ~mask) | (vaddr & mask);
+				lookupMask = mask;
 				// log.debug("translated " + Integer.toHexString(vaddr) + " to "
 				// + Integer.toHexString(paddr));
 				return paddr;
 			}
 		}
 		
-		log.println("tlb miss");
+		log.println(Logger.DEBUG, "tlb miss");
 		
 		//		for (int n = 0; n < entries.length; n++) {
 		//			Entry e = entries[n];
@@ -266,13 +433,13 @@ public final class Memory extends Device {
 		//		}
 		
 		// TODO also need to throw modified exception if page is read only...
-		throw new CpuException(new CpuExceptionParams(store ? CpuConstants.EX_TLB_STORE : CpuConstants.EX_TLB_LOAD, vaddr, refill));
+		throw cpu.exception(store ? CpuConstants.EX_TLB_STORE : CpuConstants.EX_TLB_LOAD, vaddr, refill);
 	}
 	
 	/** load word without address translation */
 	public final int loadWordKernel (final int vaddr) {
 		final int i = (vaddr & KSEG_MASK) >>> 2;
-				return i < data.length ? data[i] : 0;
+				return i < ram.size() ? ram.load(i) : 0;
 	}
 	
 	/** load byte without address translation */
@@ -288,8 +455,8 @@ public final class Memory extends Device {
 		// FIXME this doesn't translate
 		final int a = vaddr & KSEG_MASK;
 		final int i = a >>> 2;
-		if (i >= 0 && i < data.length) {
-			final int w = data[i];
+		if (i >= 0 && i < ram.size()) {
+			final int w = ram.load(i);
 			return Integer.valueOf(w);
 			
 		} else {
@@ -300,9 +467,9 @@ public final class Memory extends Device {
 	/** load boxed word, null if unmapped */
 	public Long loadDoubleWordSafe (final int paddr) {
 		final int i = paddr >>> 2;
-				if (i >= 0 && i < data.length - 1) {
-					final long w1 = data[i] & 0xffff_ffffL;
-					final long w2 = data[i + 1] & 0xffff_ffffL;
+				if (i >= 0 && i < ram.size() - 1) {
+					final long w1 = ram.load(i) & 0xffff_ffffL;
+					final long w2 = ram.load(i + 1) & 0xffff_ffffL;
 					// XXX might need swap
 					return Long.valueOf((w1 << 32) | w2);
 					
@@ -312,16 +479,17 @@ public final class Memory extends Device {
 	}
 	
 	public void print (PrintStream ps) {
-		ps.println("memory map");
-		// for each 1mb block in words
-		for (int j = 0; j < data.length; j += 0x40000) {
+		ps.println("memory map " + ram);
+		// for each 1mb block in pages
+		final int mbPages = 0x100000 / (Ram.PAGE_WORDS * 4);
+		for (int j = 0; j < ram.pages(); j += mbPages) {
 			float c = 0;
-			for (int i = 0; i < 0x40000; i++) {
-				if (data[j + i] != 0) {
+			for (int p = j; p < j + mbPages && p < ram.pages(); p++) {
+				if (ram.isUsed(p)) {
 					c++;
 				}
 			}
-			ps.println("  addr 0x" + Integer.toHexString(j * 4) + " usage " + (c / 0x100000));
+			ps.println("  addr 0x" + Integer.toHexString(j * Ram.PAGE_WORDS * 4) + " usage " + (c / mbPages));
 		}
 	}
 	
@@ -332,6 +500,6 @@ public final class Memory extends Device {
 	
 	@Override
 	public String toString () {
-		return String.format("Memory[size=%d le=%s]", data.length, littleEndian);
+		return String.format("Memory[size=%d le=%s]", ram.size(), littleEndian);
 	}
 }
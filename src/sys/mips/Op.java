@@ -0,0 +1,11 @@
+package sys.mips;
+
+/**
+ * a translated instruction, with the operands already decoded
+ */
+@FunctionalInterface
+interface Op {
+
+	void exec ();
+
+}
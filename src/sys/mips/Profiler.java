@@ -0,0 +1,129 @@
+package sys.mips;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import sys.util.Symbols;
+
+/**
+ * sampling profiler of the guest pc. samples are taken by a cpu event every
+ * interval cycles, so there is no cost to the run loop between samples and
+ * the results are repeatable. if the cpu has a call stack the whole stack is
+ * sampled as well. addresses are only resolved to symbols when the results
+ * are printed.
+ */
+public final class Profiler {
+
+	private final Cpu cpu;
+	private final long interval;
+	/** number of samples by pc */
+	private final Map<Integer, int[]> samples = new HashMap<>();
+	/** number of samples by call stack function addresses followed by pc */
+	private final Map<List<Integer>, int[]> stacks = new HashMap<>();
+	private final Runnable sampleEvent = () -> sample();
+	private int total;
+
+	/** create profiler sampling every interval cycles */
+	public Profiler (final Cpu cpu, final long interval) {
+		this.cpu = cpu;
+		this.interval = interval;
+	}
+
+	/** start sampling, must be called before run or from the cpu thread */
+	public void start () {
+		cpu.getEventQueue().add(interval, interval, sampleEvent);
+	}
+
+	/** stop sampling, must be called from the cpu thread or while the cpu is stopped */
+	public void stop () {
+		cpu.getEventQueue().remove(sampleEvent);
+	}
+
+	public int getTotal () {
+		return total;
+	}
+
+	private void sample () {
+		final Integer pc = Integer.valueOf(cpu.getPc());
+		int[] c = samples.get(pc);
+		if (c == null) {
+			samples.put(pc, c = new int[1]);
+		}
+		c[0]++;
+		total++;
+		
+		final CallStack calls = cpu.getCallStack();
+		if (calls != null) {
+			final List<Integer> key = new ArrayList<>(calls.getDepth() + 1);
+			for (int n = 0; n < calls.getDepth(); n++) {
+				key.add(Integer.valueOf(calls.getFunction(n)));
+			}
+			key.add(pc);
+			int[] s = stacks.get(key);
+			if (s == null) {
+				stacks.put(key, s = new int[1]);
+			}
+			s[0]++;
+		}
+	}
+
+	/** samples by function name */
+	public Map<String, Integer> functions () {
+		final Symbols symbols = cpu.getSymbols();
+		final Map<String, Integer> m = new HashMap<>();
+		for (Map.Entry<Integer, int[]> e : samples.entrySet()) {
+			m.merge(symbols.getName(e.getKey().intValue()), e.getValue()[0], Integer::sum);
+		}
+		return m;
+	}
+
+	/**
+	 * print the samples as collapsed stacks ("frame;frame count" per line),
+	 * the input format of flamegraph.pl. only the sampled function is in each
+	 * stack if there was no call stack.
+	 */
+	public void printCollapsed (final PrintStream ps) {
+		final Map<String, Integer> m;
+		if (stacks.isEmpty()) {
+			m = new TreeMap<>(functions());
+		} else {
+			final Symbols symbols = cpu.getSymbols();
+			m = new TreeMap<>();
+			for (Map.Entry<List<Integer>, int[]> e : stacks.entrySet()) {
+				final List<Integer> key = e.getKey();
+				final StringBuilder sb = new StringBuilder();
+				String name = null;
+				for (int n = 0; n < key.size(); n++) {
+					final String prev = name;
+					// flamegraph.pl splits the count off at the last space
+					name = symbols.getName(key.get(n).intValue()).replace(' ', '_');
+					if (prev == null) {
+						sb.append(name);
+					} else if (n < key.size() - 1 || !name.equals(prev)) {
+						// the pc is usually in the function of the last frame
+						sb.append(";").append(name);
+					}
+				}
+				m.merge(sb.toString(), e.getValue()[0], Integer::sum);
+			}
+		}
+		for (Map.Entry<String, Integer> e : m.entrySet()) {
+			ps.println(e.getKey() + " " + e.getValue());
+		}
+	}
+
+	/** print the n functions with the most samples */
+	public void printTop (final PrintStream ps, final int n) {
+		final List<Map.Entry<String, Integer>> l = new ArrayList<>(functions().entrySet());
+		l.sort((x, y) -> y.getValue() - x.getValue());
+		ps.println(String.format("%8s %7s  %s (%d samples every %d cycles)", "samples", "%", "function", total, interval));
+		for (Map.Entry<String, Integer> e : l.subList(0, Math.min(n, l.size()))) {
+			ps.println(String.format("%8d %6.2f%%  %s", e.getValue(), e.getValue() * 100.0 / Math.max(1, total), e.getKey()));
+		}
+	}
+
+	@Override
+	public String toString () {
+		return "Profiler[interval=" + interval + " samples=" + total + " pcs=" + samples.size() + "]";
+	}
+}
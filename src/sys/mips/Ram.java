@@ -0,0 +1,72 @@
+package sys.mips;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * guest ram as words, indexed by physical word index (physical address
+ * shifted right by 2)
+ */
+public interface Ram {
+
+	/** words in a 4KB page */
+	public static final int PAGE_WORDS = 0x400;
+	/** shift word index right by this to get page */
+	public static final int PAGE_SHIFT = 10;
+
+	/**
+	 * create ram of the given size in words. type is heap (the default),
+	 * direct (off heap) or the path of a file to map.
+	 */
+	public static Ram create (final String type, final int size) throws IOException {
+		if (type == null || type.equals("heap")) {
+			return new HeapRam(size);
+		} else if (type.equals("direct")) {
+			return new BufferRam(size);
+		} else {
+			return new BufferRam(Paths.get(type), size);
+		}
+	}
+
+	/** size in words */
+	public int size ();
+
+	/** number of pages */
+	public default int pages () {
+		return (size() + PAGE_WORDS - 1) >>> PAGE_SHIFT;
+	}
+
+	public int load (int i);
+
+	public void store (int i, int value);
+
+	/** copy words starting at i to the array, must not cross a page */
+	public void load (int i, int[] a);
+
+	/** copy the array to words starting at i, must not cross a page */
+	public void store (int i, int[] a);
+
+	/** copy len words from index src to index dst, neither range may cross a page */
+	public void copy (int src, int dst, int len);
+
+	/** set len words starting at i to the value, must not cross a page */
+	public void fill (int i, int len, int value);
+
+	/** true if the page might not be all zero */
+	public boolean isUsed (int p);
+
+	/** number of pages that might not be all zero */
+	public default int usedPages () {
+		int c = 0;
+		for (int p = 0; p < pages(); p++) {
+			if (isUsed(p)) {
+				c++;
+			}
+		}
+		return c;
+	}
+
+	/** create a copy of this ram, the ram must not be in use */
+	public Ram fork ();
+
+}
@@ -0,0 +1,139 @@
+package sys.mips;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * save and restore the complete state of a stopped cpu. the file is a header,
+ * the symbols, the cpu and device state and then the ram pages that aren't
+ * all zero, each prefixed by its page number.
+ */
+public final class Snapshot {
+
+	private static final int MAGIC = 0x534e4150;
+	private static final int VERSION = 2;
+	private static final int PAGE_WORDS = Ram.PAGE_WORDS;
+	/** ram pages are buffered up to this size before writing */
+	private static final int BUFFER_SIZE = 0x10_0000;
+
+	/** write the state of the cpu to the file, the cpu must not be running */
+	public static void save (final Cpu cpu, final Path path) throws IOException {
+		final Ram ram = cpu.getMemory().getRam();
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bos)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(ram.size() * 4);
+			out.writeBoolean(cpu.isLittleEndian());
+			cpu.getSymbols().save(out);
+			cpu.saveState(out);
+		}
+
+		try (FileChannel chan = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(bos.size());
+			flush(chan, buf);
+			final ByteBuffer state = ByteBuffer.wrap(bos.toByteArray());
+			while (state.hasRemaining()) {
+				chan.write(state);
+			}
+
+			final int[] page = new int[PAGE_WORDS];
+			for (int p = 0; p < ram.pages(); p++) {
+				if (ram.isUsed(p)) {
+					ram.load(p * PAGE_WORDS, page);
+					if (!isZero(page)) {
+						if (buf.remaining() < PAGE_WORDS * 4 + 4) {
+							flush(chan, buf);
+						}
+						buf.putInt(p);
+						buf.asIntBuffer().put(page);
+						buf.position(buf.position() + PAGE_WORDS * 4);
+					}
+				}
+			}
+			buf.putInt(-1);
+			flush(chan, buf);
+		}
+	}
+
+	/** create a cpu with heap ram from the file, ready to run */
+	public static Cpu load (final Path path) throws IOException {
+		return load(path, null);
+	}
+
+	/** create a cpu from the file with the given type of ram (see Ram.create) */
+	public static Cpu load (final Path path, final String ramType) throws IOException {
+		try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
+			final MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			final byte[] state = new byte[buf.getInt()];
+			buf.get(state);
+
+			try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state))) {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("not a snapshot: " + path);
+				}
+				final int memsize = in.readInt();
+				final Cpu cpu = new Cpu(Ram.create(ramType, memsize >>> 2), in.readBoolean());
+				cpu.getSymbols().load(in);
+
+				final Ram ram = cpu.getMemory().getRam();
+				final int[] page = new int[PAGE_WORDS];
+				int p, next = 0;
+				while ((p = buf.getInt()) >= 0) {
+					clear(ram, page, next, p);
+					buf.asIntBuffer().get(page);
+					ram.store(p * PAGE_WORDS, page);
+					buf.position(buf.position() + PAGE_WORDS * 4);
+					next = p + 1;
+				}
+				clear(ram, page, next, ram.pages());
+
+				cpu.loadState(in);
+				return cpu;
+			}
+		}
+	}
+
+	/** zero the pages from start to end that aren't already zero (mapped ram might not be) */
+	private static void clear (final Ram ram, final int[] page, final int start, final int end) {
+		for (int p = start; p < end; p++) {
+			if (ram.isUsed(p)) {
+				ram.load(p * PAGE_WORDS, page);
+				if (!isZero(page)) {
+					Arrays.fill(page, 0);
+					ram.store(p * PAGE_WORDS, page);
+				}
+			}
+		}
+	}
+
+	private static boolean isZero (final int[] page) {
+		for (int n = 0; n < page.length; n++) {
+			if (page[n] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** write the buffer up to its position and clear it */
+	private static void flush (final FileChannel chan, final ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			chan.write(buf);
+		}
+		buf.clear();
+	}
+
+	private Snapshot () {
+		//
+	}
+}
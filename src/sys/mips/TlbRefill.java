@@ -0,0 +1,139 @@
+package sys.mips;
+
+import static sys.mips.CpuConstants.*;
+import static sys.mips.CpuFunctions.*;
+import static sys.mips.MemoryUtil.*;
+
+/**
+ * native version of the linux tlb refill handler. the handler the kernel
+ * writes to the refill vector is decoded the first time it's needed to find
+ * pgd_current and the pte to entrylo shift, after that refills walk the page
+ * tables directly. if the handler isn't the expected kind, or any of the
+ * pointers isn't in kseg0 ram, the refill goes to the vector as usual. the
+ * handler is decoded again if its page is written to, as the first refill can
+ * happen before the kernel has installed it.
+ */
+final class TlbRefill {
+
+	/** most instructions of the handler to decode */
+	private static final int MAX_ISNS = 32;
+	/** the pgd covers 4MB per entry for 4KB pages and 32 bit ptes */
+	private static final int PGDIR_SHIFT = 22;
+
+	private final Ram ram;
+	/** handler has been decoded */
+	private boolean decoded;
+	/** kseg0 address of pgd_current, 0 if the handler isn't usable */
+	private int pgdCurrent;
+	/** shift of a pte to get entrylo */
+	private int pteShift;
+
+	public TlbRefill (final Ram ram) {
+		this.ram = ram;
+	}
+
+	/**
+	 * get the entrylo values for the virtual address from the page tables,
+	 * false if the guest handler should be run instead
+	 */
+	public boolean walk (final int vaddr, final int[] entryLo) {
+		if (!decoded) {
+			decode();
+			decoded = true;
+		}
+		if (pgdCurrent == 0) {
+			return false;
+		}
+		final int pgd = load(pgdCurrent);
+		final int ptes = pgd != 0 ? load(pgd + ((vaddr >>> PGDIR_SHIFT) << 2)) : 0;
+		if (ptes == 0) {
+			return false;
+		}
+		final int i = index(ptes + (((vaddr >>> 13) & 0x1ff) << 3));
+		if (i < 0) {
+			return false;
+		}
+		entryLo[0] = ram.load(i) >>> pteShift;
+		entryLo[1] = ram.load(i + 1) >>> pteShift;
+		return true;
+	}
+
+	/** the page of the refill vector has been written to, decode the handler again on the next refill */
+	void invalidate () {
+		decoded = false;
+		pgdCurrent = 0;
+	}
+	
+	/** find pgd_current and the pte shift in the handler, leave pgdCurrent 0 if it isn't the expected kind */
+	private void decode () {
+		final int[] hi = new int[32];
+		final boolean[] hasHi = new boolean[32];
+		int pgdc = 0, pgdShift = -1, srl = -1, pte = -1;
+		boolean badVaddr = false, tlbwr = false;
+		for (int n = 0; n < MAX_ISNS; n++) {
+			final int isn = load(EXV_TLBREFILL + n * 4);
+			final int rs = rs(isn), rt = rt(isn);
+			switch (op(isn)) {
+				case OP_LUI:
+					hi[rt] = isn << 16;
+					hasHi[rt] = true;
+					break;
+				case OP_LW:
+					// lui k1, %hi(pgd_current); lw k1, %lo(pgd_current)(k1)
+					if (pgdc == 0 && rs == rt && hasHi[rs]) {
+						pgdc = hi[rs] + simm(isn);
+					}
+					hasHi[rt] = false;
+					srl = -1;
+					break;
+				case OP_SPECIAL:
+					// not rotr, which has rs = 1
+					if (fn(isn) == FN_SRL && rs == 0) {
+						if (badVaddr && pgdShift < 0) {
+							pgdShift = sa(isn);
+						}
+						srl = sa(isn);
+					}
+					break;
+				case OP_COP0:
+					if (rs == CP_RS_MFC0 && rd(isn) == CPR_BADVADDR) {
+						badVaddr = true;
+					} else if (rs == CP_RS_MTC0 && rd(isn) == CPR_ENTRYLO0) {
+						pte = srl;
+					} else if (rs >= CP_RS_CO && fn(isn) == CP_FN_TLBWR) {
+						tlbwr = true;
+					} else if (rs >= CP_RS_CO && fn(isn) == CP_FN_ERET) {
+						if (index(pgdc) >= 0 && pgdShift == PGDIR_SHIFT && pte >= 0 && tlbwr) {
+							pgdCurrent = pgdc;
+							pteShift = pte;
+						}
+						return;
+					}
+					break;
+				default:
+			}
+		}
+	}
+
+	/** load word from kseg0 ram, 0 if it isn't */
+	private int load (final int addr) {
+		final int i = index(addr);
+		return i >= 0 ? ram.load(i) : 0;
+	}
+
+	/** word index of aligned kseg0 ram address, or -1 */
+	private int index (final int addr) {
+		if (addr >= KSEG0 && addr < KSEG1 && (addr & 3) == 0) {
+			final int i = (addr & KSEG_MASK) >>> 2;
+			if (i < ram.size()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString () {
+		return String.format("TlbRefill[decoded=%s pgdCurrent=%x pteShift=%d]", decoded, pgdCurrent, pteShift);
+	}
+}
@@ -34,7 +34,7 @@ public class LoggerJPanel extends JPanel {
 			public String getToolTipText (MouseEvent e) {
 				int r = rowAtPoint(e.getPoint());
 				Log l = tableModel.getRow(r);
-				return "<html><b>" + l.sym + "</b><br>" + MaltaJFrame.wrap(l.msg, 100).replace("\n","<br>") + "</html>";
+				return "<html><b>" + l.getSym() + "</b><br>" + MaltaJFrame.wrap(l.msg, 100).replace("\n","<br>") + "</html>";
 			}
 		};
 		
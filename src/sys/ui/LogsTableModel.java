@@ -105,7 +105,7 @@ public class LogsTableModel extends AbstractTableModel {
 			case 3:
 				return l.msg;
 			case 4:
-				return l.sym;
+				return l.getSym();
 			default:
 				throw new RuntimeException();
 		}
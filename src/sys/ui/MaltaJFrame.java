@@ -4,7 +4,6 @@ import java.awt.BorderLayout;
 import java.awt.Font;
 import java.beans.*;
 import java.io.*;
-import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.text.NumberFormat;
 import java.util.*;
@@ -17,10 +16,10 @@ import javax.swing.Timer;
 import javax.swing.border.*;
 import javax.swing.text.*;
 
+import sys.malta.Machine;
 import sys.mips.Cpu;
 import sys.mips.CpuConstants;
 import sys.mips.CpuExceptionParams;
-import sys.mips.CpuUtil;
 import sys.util.Log;
 
 public class MaltaJFrame extends JFrame implements PropertyChangeListener {
@@ -46,6 +45,8 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 	private final JButton runButton = new JButton("Run");
 	private final JButton stopButton = new JButton("Stop");
 	private final JSpinner memSpinner = new JSpinner(new SpinnerNumberModel(32,32,512,1));
+	private final JCheckBox realTimeBox = new JCheckBox("Real time");
+	private final JCheckBox hleBox = new JCheckBox("HLE");
 	private final JTabbedPane tabbedPane = new JTabbedPane();
 	private final SymbolJPanel symbolsPanel = new SymbolJPanel();
 	private final LoggerJPanel loggerPanel = new LoggerJPanel();
@@ -53,6 +54,7 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 	private final Timer timer;
 	
 	private volatile Thread thread;
+	private Machine machine;
 	private Cpu cpu;
 	
 	public MaltaJFrame () {
@@ -97,6 +99,8 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 		topPanel1.add(memSpinner);
 		topPanel1.add(new JLabel("Args"));
 		topPanel1.add(argsField);
+		topPanel1.add(realTimeBox);
+		topPanel1.add(hleBox);
 		topPanel1.add(loadButton);
 		//topPanel1.add(new JLabel("Env"));
 		//topPanel1.add(envField);
@@ -194,8 +198,6 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 		final int memsize = ((Integer)memSpinner.getValue()).intValue() * 0x100000;
 		
 		List<String> args = new ArrayList<>();
-		// linux ignores first arg...
-		args.add("linux");
 		{
 			StringTokenizer st = new StringTokenizer(argsField.getText());
 			while (st.hasMoreTokens()) {
@@ -203,18 +205,12 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 			}
 		}
 		
-		List<String> env = new ArrayList<>();
-		env.add("memsize");
-		env.add(String.valueOf(memsize));
-		
 		consoleArea.setText("");
 		
-		final Cpu cpu;
+		final Machine machine;
 		
-		try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ)) {
-			int[] top = new int[1];
-			cpu = CpuUtil.loadElf(chan, memsize, top);
-			CpuUtil.setMainArgs(cpu, top[0] + 0x100000, args, env);
+		try {
+			machine = Machine.load(path.getFileName().toString(), path, memsize, args);
 			
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -222,9 +218,20 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 			return;
 		}
 		
+		if (this.machine != null) {
+			// stop listening to the previous machine so it can be collected
+			this.cpu.getSupport().removePropertyChangeListener(this);
+			this.machine.dispose();
+		}
+		
+		final Cpu cpu = machine.getCpu();
+		
 		cpu.getMemory().print(System.out);
+		cpu.setRealTime(realTimeBox.isSelected());
+		cpu.setHle(hleBox.isSelected());
 		cpu.getSupport().addPropertyChangeListener(this);
 		
+		this.machine = machine;
 		this.cpu = cpu;
 		
 		symbolsPanel.setSymbols(cpu.getSymbols());
@@ -361,7 +368,7 @@ public class MaltaJFrame extends JFrame implements PropertyChangeListener {
 	
 	private void updateCycle () {
 		if (cpu != null) {
-			cycleLabel.setText(NumberFormat.getInstance().format(cpu.getCycle()));
+			cycleLabel.setText(NumberFormat.getInstance().format(cpu.getPublishedCycle()));
 		}
 	}
 
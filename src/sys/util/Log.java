@@ -1,20 +1,22 @@
 package sys.util;
 
-import java.util.HashMap;
-
 public class Log {
 	
-	private static final HashMap<String,String> CACHE = new HashMap<>();
+	/** interned strings, lossy so it doesn't grow without bound */
+	private static final String[] CACHE = new String[0x1000];
 	
 	private static String cache(String s) {
-		synchronized (CACHE) {
-			String t = CACHE.get(s);
-			if (t != null) {
-				return t;
-			} else {
-				CACHE.put(s, s);
-				return s;
-			}
+		if (s == null) {
+			return null;
+		}
+		// races are harmless, at worst a string isn't shared
+		final int i = s.hashCode() & (CACHE.length - 1);
+		final String t = CACHE[i];
+		if (s.equals(t)) {
+			return t;
+		} else {
+			CACHE[i] = s;
+			return s;
 		}
 	}
 	
@@ -24,21 +26,28 @@ public class Log {
 	public final boolean km;
 	public final boolean ie;
 	public final boolean ex;
-	public final String sym;
+	public final int pc;
+	/** symbol of pc, looked up on the cpu thread as the symbols aren't thread safe */
+	private final String sym;
 	public Log(String name, String msg) {
-		this(0, false, false, false, name, msg, null);
+		this(0, false, false, false, name, msg, 0, null);
 	}
-	public Log(long cycle, boolean km, boolean ie, boolean ex, String name, String msg, String sym) {
+	public Log(long cycle, boolean km, boolean ie, boolean ex, String name, String msg, int pc, String sym) {
 		this.cycle = cycle;
 		this.name = cache(name);
 		this.msg = cache(msg);
 		this.km = km;
 		this.ie = ie;
 		this.ex = ex;
+		this.pc = pc;
 		this.sym = cache(sym);
 	}
+	/** symbol of pc */
+	public String getSym () {
+		return sym;
+	}
 	@Override
 	public String toString () {
-		return "[" + cycle + ":" + (km?"k":"") + (ie?"i":"") + (ex?"x":"") + ":" + name + ":" + sym + "] " + msg;
+		return "[" + cycle + ":" + (km?"k":"") + (ie?"i":"") + (ex?"x":"") + ":" + name + ":" + getSym() + "] " + msg;
 	}
 }
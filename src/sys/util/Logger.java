@@ -1,40 +1,96 @@
 package sys.util;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
 import sys.mips.Cpu;
 
 public class Logger {
 	
-	public static int rootLevel = 1;
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	
+	/** level of loggers that don't have their own level */
+	public static int rootLevel = INFO;
+	
+	/** value of level for loggers that use the root level */
+	private static final int NO_LEVEL = Integer.MIN_VALUE;
+	/** levels by logger name, shared by all loggers with that name */
+	private static final Map<String, int[]> LEVELS = new HashMap<>();
+	
+	private static int[] levelOf (String name) {
+		synchronized (LEVELS) {
+			return LEVELS.computeIfAbsent(name, k -> new int[] { NO_LEVEL });
+		}
+	}
+	
+	/** set level of all loggers with the name, should be set before running */
+	public static void setLevel (String name, int level) {
+		levelOf(name)[0] = level;
+	}
+	
+	/** use the root level for all loggers with the name */
+	public static void clearLevel (String name) {
+		levelOf(name)[0] = NO_LEVEL;
+	}
 	
 	private final String name;
+	private final int[] level;
 
 	public Logger (String name) {
 		this.name = name;
+		this.level = levelOf(name);
+	}
+	
+	/** true if messages at this level are logged */
+	public final boolean isLoggable (int level) {
+		final int l = this.level[0];
+		return level >= (l != NO_LEVEL ? l : rootLevel);
 	}
 	
 	public void println (String msg) {
-		println(1, msg);
+		println(INFO, msg);
 	}
 	
 	public void println (String format, Object... args) {
-		println(1, String.format(format, args));
+		if (isLoggable(INFO)) {
+			log(String.format(format, args));
+		}
 	}
 	
 	public void println (int level, String msg) {
-		if (level >= rootLevel) {
-			Cpu cpu = Cpu.getInstance();
-			Log log;
-			if (cpu != null) {
-				String sym = cpu.getSymbols().getNameOffset(cpu.getPc());
-				boolean k = cpu.isKernelMode();
-				boolean i = cpu.isInterruptsEnabled();
-				boolean x = cpu.isExecException();
-				log = new Log(cpu.getCycle(), k, i, x, name, msg, sym);
-				cpu.addLog(log);
-			} else {
-				log = new Log(name, msg);
-			}
-			//System.out.println(log.toString());
+		if (isLoggable(level)) {
+			log(msg);
+		}
+	}
+	
+	public void println (int level, String format, Object... args) {
+		if (isLoggable(level)) {
+			log(String.format(format, args));
+		}
+	}
+	
+	/** log message, only calling the supplier if the level is loggable */
+	public void println (int level, Supplier<String> msg) {
+		if (isLoggable(level)) {
+			log(msg.get());
+		}
+	}
+	
+	private void log (String msg) {
+		Cpu cpu = Cpu.getInstance();
+		Log log;
+		if (cpu != null) {
+			boolean k = cpu.isKernelMode();
+			boolean i = cpu.isInterruptsEnabled();
+			boolean x = cpu.isExecException();
+			final int pc = cpu.getPc();
+			log = new Log(cpu.getCycle(), k, i, x, name, msg, pc, cpu.getSymbols().getNameOffset(pc));
+			cpu.addLog(log);
+		} else {
+			log = new Log(name, msg);
 		}
+		//System.out.println(log.toString());
 	}
 }
@@ -1,5 +1,8 @@
 package sys.util;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
@@ -67,6 +70,10 @@ public final class Symbols {
 		return addrStr;
 	}
 	
+	public boolean hasName (final String name) {
+		return reverseMap.containsKey(name);
+	}
+	
 	public int getAddr (final String name) {
 		return reverseMap.get(name).intValue();
 	}
@@ -123,6 +130,36 @@ public final class Symbols {
 		}
 	}
 	
+	/** write all symbols to a snapshot */
+	public void save (final DataOutput out) throws IOException {
+		out.writeInt(map.size());
+		for (Symbol s : map.values()) {
+			out.writeInt(s.addr);
+			out.writeUTF(s.name);
+			out.writeInt(s.size);
+		}
+		out.writeInt(reverseMap.size());
+		for (Map.Entry<String, Long> e : reverseMap.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeLong(e.getValue().longValue());
+		}
+	}
+	
+	/** replace all symbols with those written by save */
+	public void load (final DataInput in) throws IOException {
+		map.clear();
+		reverseMap.clear();
+		final int size = in.readInt();
+		for (int n = 0; n < size; n++) {
+			final Symbol s = new Symbol(in.readInt(), in.readUTF(), in.readInt());
+			map.put(Long.valueOf(s.addr & 0xffff_ffffL), s);
+		}
+		final int rsize = in.readInt();
+		for (int n = 0; n < rsize; n++) {
+			reverseMap.put(in.readUTF(), Long.valueOf(in.readLong()));
+		}
+	}
+	
 	@Override
 	public String toString () {
 		final Map.Entry<Long, Symbol> e1 = map.firstEntry();